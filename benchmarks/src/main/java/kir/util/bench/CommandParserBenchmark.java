@@ -0,0 +1,48 @@
+package kir.util.bench;
+
+import kir.util.CommandParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParserBenchmark {
+
+    @Param({"ls", "cd \"my documents\"", "up a.txt b.txt \"c d.txt\" e.bin f.bin g.bin"})
+    public String command;
+
+    @Benchmark
+    public Object singlePass() {
+        return CommandParser.parse(command);
+    }
+
+    @Benchmark
+    public Object regex() {
+        return parseRegex(command);
+    }
+
+    // The parser as it was before the single pass tokenizer
+    private static Map.Entry<String, List<String>> parseRegex(String command) {
+        var tokens = new ArrayList<>();
+        var matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(command);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) tokens.add(matcher.group(1));
+            else tokens.add(matcher.group(2));
+        }
+        if (tokens.isEmpty()) throw new IllegalArgumentException("Command cannot be empty.");
+        var cmd = tokens.get(0).toString();
+        var args = tokens.subList(1, tokens.size()).stream().map(Object::toString).toList();
+        return new AbstractMap.SimpleEntry<>(cmd, args);
+    }
+
+}
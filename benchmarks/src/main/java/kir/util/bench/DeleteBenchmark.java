@@ -0,0 +1,69 @@
+package kir.util.bench;
+
+import kir.util.TreeDeleter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletion of a synthetic tree of a million empty files, by TreeDeleter on {@code threads}
+ * threads against a single threaded walk. {@code threads = 0} stands for every available core.
+ * The tree is created again before every deletion, which takes longer than deleting it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DeleteBenchmark {
+
+    @Param({"1000000"})
+    public int files;
+
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    private Path tree;
+
+    @Setup(Level.Invocation)
+    public void createTree() throws IOException {
+        tree = SyntheticTree.create(files);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTree() throws IOException {
+        SyntheticTree.delete(tree);
+    }
+
+    @Benchmark
+    public long treeDeleter() throws IOException {
+        var parallelism = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        return new TreeDeleter(parallelism).delete(tree);
+    }
+
+    @Benchmark
+    public void walk() throws IOException {
+        Files.walkFileTree(tree, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,84 @@
+package kir.util.bench;
+
+import kir.util.CommandParser;
+import kir.util.net.CommandHandler;
+import kir.util.net.Handler;
+import kir.util.net.NetTransceiver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"noop", "ECHO a b c"})
+    public String command;
+
+    private NetTransceiver[] pair;
+    private BenchHandler handler;
+
+    @Setup
+    public void setup() throws IOException {
+        pair = Loopback.tcp(2048, true);
+        handler = new BenchHandler(pair[1]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (var t : pair) t.close();
+    }
+
+    @Benchmark
+    public void table() throws IOException {
+        handler.handle(command);
+    }
+
+    @Benchmark
+    public void reflectiveScan(Blackhole bh) {
+        // The dispatch loop as it was before the per-class table
+        var cmdArr = CommandParser.parse(command);
+        var cmdArgs = cmdArr.getValue().toArray(String[]::new);
+        for (var method : handler.getClass().getDeclaredMethods()) {
+            if (method.isAnnotationPresent(Handler.class) && method.getName().equalsIgnoreCase(cmdArr.getKey())) {
+                method.setAccessible(true);
+                var paramCount = method.getParameterCount();
+                var isParamVarArgs = paramCount > 0 && method.getParameterTypes()[paramCount - 1].isArray();
+                try {
+                    if (isParamVarArgs) method.invoke(handler, (Object) cmdArgs);
+                    else method.invoke(handler);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new RuntimeException(e);
+                }
+                bh.consume(method);
+                break;
+            }
+        }
+    }
+
+    public static class BenchHandler extends CommandHandler {
+        public long calls;
+
+        public BenchHandler(NetTransceiver transceiver) {
+            super(transceiver);
+        }
+
+        @Handler
+        private void noop() {
+            calls++;
+        }
+
+        @Handler
+        private void echo(String... args) {
+            calls += args.length;
+        }
+    }
+
+}
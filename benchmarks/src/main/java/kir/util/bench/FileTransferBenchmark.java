@@ -0,0 +1,76 @@
+package kir.util.bench;
+
+import kir.util.net.NetTransceiver;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sendFile/receiveFile of one file over loopback TCP. The stream path copies through a
+ * {@code bufSize} buffer, the channel path uses transferTo/transferFrom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBenchmark {
+
+    @Param({"2048", "8192", "65536", "262144"})
+    public int bufSize;
+
+    @Param({"stream", "channel"})
+    public String path;
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    private NetTransceiver[] pair;
+    private ExecutorService sender;
+    private Path dir;
+    private Path source;
+    private Path target;
+
+    @Setup
+    public void setup() throws IOException {
+        Loopback.mute();
+        pair = Loopback.tcp(bufSize, path.equals("channel"));
+        sender = Executors.newSingleThreadExecutor();
+        dir = Files.createTempDirectory("kir-bench");
+        source = dir.resolve("source.bin");
+        target = Files.createDirectories(dir.resolve("received"));
+        var data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        Files.write(source, data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (var t : pair) t.close();
+        sender.shutdownNow();
+        try (var ps = Files.walk(dir)) {
+            for (var p : ps.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    @Benchmark
+    public Path transfer() throws Exception {
+        Future<?> sent = sender.submit(() -> {
+            pair[0].sendFile(source.toFile());
+            return null;
+        });
+        var received = pair[1].receiveFile(target);
+        sent.get();
+        return received;
+    }
+
+}
@@ -0,0 +1,37 @@
+package kir.util.bench;
+
+import kir.util.ListHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListHelperBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Param({"10", "1000"})
+    public int count;
+
+    private List<Integer> source;
+
+    @Setup
+    public void setup() {
+        source = new ArrayList<>(size);
+        for (var i = 0; i < size; i++) source.add(i);
+    }
+
+    @Benchmark
+    public List<List<Integer>> divide() {
+        return ListHelper.divide(source, count);
+    }
+
+}
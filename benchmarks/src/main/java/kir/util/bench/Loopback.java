@@ -0,0 +1,75 @@
+package kir.util.bench;
+
+import kir.util.net.NetTransceiver;
+import kir.util.net.SocketMode;
+import kir.util.net.TCPSocket;
+import kir.util.net.UDPServerSocket;
+import kir.util.net.UDPSocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connected transceiver pairs over the loopback interface.
+ */
+final class Loopback {
+
+    /**
+     * @param nio whether the sockets are opened through channels, which enables the zero-copy file path.
+     * @return {@code [client, server]}
+     */
+    static NetTransceiver[] tcp(int bufSize, boolean nio) throws IOException {
+        Socket client, server;
+        if (nio) {
+            try (var ssc = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+                client = SocketChannel.open(ssc.getLocalAddress()).socket();
+                server = ssc.accept().socket();
+            }
+        } else {
+            try (var ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                client = new Socket(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+                server = ss.accept();
+            }
+        }
+        return new NetTransceiver[] {
+                new NetTransceiver(new TCPSocket(client, bufSize), SocketMode.TCP, bufSize),
+                new NetTransceiver(new TCPSocket(server, bufSize), SocketMode.TCP, bufSize),
+        };
+    }
+
+    /**
+     * @return {@code [client, server]}
+     */
+    static NetTransceiver[] udp(int bufSize) throws IOException {
+        // The server socket is released once the session accepted here is closed
+        try (var ss = new UDPServerSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), bufSize)) {
+            var client = UDPSocket.locate("127.0.0.1", ss.getLocalPort(), bufSize);
+            var server = ss.accept();
+            return new NetTransceiver[] {
+                    new NetTransceiver(client, SocketMode.UDP, bufSize),
+                    new NetTransceiver(server, SocketMode.UDP, bufSize),
+            };
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (var ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    /**
+     * Silences the console output of servers and transfers running inside the benchmark fork.
+     */
+    static void mute() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+}
@@ -0,0 +1,86 @@
+package kir.util.bench;
+
+import kir.util.net.NetClient;
+import kir.util.net.NetServer;
+import kir.util.net.ServerEngine;
+import kir.util.net.SessionExecutor;
+import kir.util.net.SocketMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects {@code sessions} clients to one server, runs a command on each and keeps them all
+ * open. Reports the time taken and, as a secondary result, the JVM thread count at that point.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionScalingBenchmark {
+
+    @Param({"PLATFORM", "VIRTUAL", "REACTOR"})
+    public String executor;
+
+    @Param({"100", "1000"})
+    public int sessions;
+
+    private NetServer server;
+    private int port;
+    private List<NetClient> clients;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Threads {
+        public long threads;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Loopback.mute();
+        port = Loopback.freePort();
+        if (executor.equals("REACTOR")) {
+            server = new NetServer(SocketMode.TCP, port, 2048);
+            server.setEngine(ServerEngine.REACTOR);
+        } else {
+            server = new NetServer(SocketMode.TCP, port, 2048, SessionExecutor.valueOf(executor));
+        }
+        var listener = new Thread(server::listen);
+        listener.setDaemon(true);
+        listener.start();
+        Thread.sleep(200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() throws IOException {
+        for (var client : clients) {
+            client.send("dc");
+            client.close();
+        }
+        clients = null;
+    }
+
+    @Benchmark
+    public void connectAll(Threads threads) throws IOException {
+        clients = new ArrayList<>(sessions);
+        for (var i = 0; i < sessions; i++) {
+            var client = new NetClient(SocketMode.TCP, "127.0.0.1", port);
+            client.handshake(() -> null);
+            clients.add(client);
+        }
+        for (var client : clients) client.sendw("help");
+        threads.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+}
@@ -0,0 +1,79 @@
+package kir.util.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Directory trees used by the archive and delete benchmarks.
+ */
+final class SyntheticTree {
+
+    private static final String[] WORDS = {"kir", "utility", "net", "server", "client", "zip", "finger", "sticky", "handler", "command"};
+
+    /**
+     * @param shape {@code small} for many small text files, {@code large} for a few big files
+     *              of which one is incompressible.
+     */
+    static Path create(String shape) throws IOException {
+        var root = Files.createTempDirectory("kir-tree");
+        var random = new Random(42);
+        switch (shape) {
+            case "small" -> {
+                for (var i = 0; i < 5000; i++) {
+                    var dir = Files.createDirectories(root.resolve("d" + (i % 50)));
+                    Files.write(dir.resolve("f" + i + ".txt"), text(random, 2048));
+                }
+            }
+            case "large" -> {
+                for (var i = 0; i < 4; i++) Files.write(root.resolve("log" + i + ".txt"), text(random, 16 << 20));
+                var noise = new byte[16 << 20];
+                random.nextBytes(noise);
+                Files.write(root.resolve("noise.bin"), noise);
+            }
+            default -> throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return root;
+    }
+
+    /**
+     * Tree of {@code files} empty files, a thousand per directory under a hundred parents, as
+     * left by a build. Created in parallel, it takes a while.
+     */
+    static Path create(int files) throws IOException {
+        var root = Files.createTempDirectory("kir-tree");
+        try {
+            IntStream.range(0, (files + 999) / 1000).parallel().forEach(d -> {
+                try {
+                    var dir = Files.createDirectories(root.resolve("p" + d % 100).resolve("d" + d));
+                    for (var i = d * 1000; i < Math.min(files, (d + 1) * 1000); i++) Files.createFile(dir.resolve("f" + i + ".o"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return root;
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) return;
+        try (var ps = Files.walk(root)) {
+            for (var p : ps.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    private static byte[] text(Random random, int size) {
+        var sb = new StringBuilder(size + 16);
+        while (sb.length() < size) sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(100) == 0 ? '\n' : ' ');
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
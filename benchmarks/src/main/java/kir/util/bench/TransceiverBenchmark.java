@@ -0,0 +1,49 @@
+package kir.util.bench;
+
+import kir.util.net.NetTransceiver;
+import kir.util.net.SocketMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One message from client to server and back, both ends driven by the benchmark thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransceiverBenchmark {
+
+    @Param({"TCP", "UDP"})
+    public SocketMode mode;
+
+    @Param({"16", "1024"})
+    public int messageSize;
+
+    private NetTransceiver[] pair;
+    private String message;
+
+    @Setup
+    public void setup() throws IOException {
+        Loopback.mute();
+        pair = mode == SocketMode.TCP ? Loopback.tcp(2048, true) : Loopback.udp(2048);
+        message = "x".repeat(messageSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (var t : pair) t.close();
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        pair[0].send(message);
+        pair[1].send(pair[1].receive());
+        return pair[0].receive();
+    }
+
+}
@@ -0,0 +1,69 @@
+package kir.util.bench;
+
+import kir.util.StickyFinger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of a StickyFinger archive, sequentially from a stream or in parallel through the
+ * central directory. {@code threads = 0} stands for every available core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnzipBenchmark {
+
+    @Param({"small", "large"})
+    public String shape;
+
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    private Path tree;
+    private Path archive;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tree = SyntheticTree.create(shape);
+        archive = Files.createTempFile("kir-bench", ".zip");
+        StickyFinger.zip(archive.toString(), 1, tree);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticTree.delete(tree);
+        Files.deleteIfExists(archive);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() throws IOException {
+        target = Files.createTempDirectory("kir-unzip");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        SyntheticTree.delete(target);
+    }
+
+    @Benchmark
+    public void parallel() {
+        var parallelism = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        StickyFinger.unzip(archive, target, parallelism);
+    }
+
+    @Benchmark
+    public void stream() throws IOException {
+        try (var is = Files.newInputStream(archive)) {
+            StickyFinger.unzip(is, target);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package kir.util.bench;
+
+import kir.util.StickyFinger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Archive throughput of StickyFinger.zip per level and thread count, {@code threads = 0}
+ * stands for every available core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"small", "large"})
+    public String shape;
+
+    @Param({"0", "1", "6"})
+    public int level;
+
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    private Path tree;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tree = SyntheticTree.create(shape);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticTree.delete(tree);
+    }
+
+    @Benchmark
+    public void zip() throws IOException {
+        var parallelism = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        StickyFinger.zip(OutputStream.nullOutputStream(), level, parallelism, tree);
+    }
+
+}
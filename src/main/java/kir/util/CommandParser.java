@@ -1,37 +1,95 @@
 package kir.util;
 
-import java.util.AbstractMap;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
+/**
+ * Single pass command tokenizer. Tokens are separated by whitespace, a token starting with
+ * {@code "} runs up to the matching quote and may contain spaces. Inside quotes {@code \"} and
+ * {@code \\} escape a quote or a backslash, any other backslash is kept as is. Unquoted tokens
+ * are taken literally, so Windows and UNC paths survive.
+ */
 public final class CommandParser {
 
-    public static Map.Entry<String, List<String>> parse(String command) {
-        var tokens = new ArrayList<>();
-        var matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(command);
-
-        // Extract all tokens (command and arguments)
-        while (matcher.find()) {
-            if (matcher.group(1) != null) {
-                // Quoted argument without quotes
-                tokens.add(matcher.group(1));
-            } else {
-                // Unquoted argument
-                tokens.add(matcher.group(2));
+    private static final ThreadLocal<CommandParser> PARSER = ThreadLocal.withInitial(CommandParser::new);
+
+    // Scratch state reused between calls
+    private final StringBuilder sb = new StringBuilder();
+    private String[] tokens = new String[8];
+    private int count;
+
+    public static ParsedCommand parse(String command) {
+        return PARSER.get().tokenize(command);
+    }
+
+    public ParsedCommand tokenize(String command) {
+        count = 0;
+        var n = command.length();
+        var i = 0;
+        while (true) {
+            while (i < n && isSpace(command.charAt(i))) i++;
+            if (i == n) break;
+
+            if (command.charAt(i) == '"') {
+                var close = closingQuote(command, i + 1);
+                if (close != -1) {
+                    // Quoted argument without quotes
+                    add(quoted(command, i + 1, close));
+                    i = close + 1;
+                    continue;
+                }
             }
+
+            // Unquoted argument, an unterminated quote is taken literally
+            var start = i;
+            while (i < n && !isSpace(command.charAt(i))) i++;
+            add(command.substring(start, i));
         }
 
-        if (tokens.isEmpty()) {
+        if (count == 0) {
             throw new IllegalArgumentException("Command cannot be empty.");
         }
 
         // The first token is the command; the rest are arguments
-        var cmd = tokens.get(0).toString();
-        var args = tokens.subList(1, tokens.size()).stream().map(Object::toString).toList();
+        var result = new ParsedCommand(tokens[0], Arrays.copyOfRange(tokens, 1, count));
+        Arrays.fill(tokens, 0, count, null);
+        return result;
+    }
+
+    private void add(String token) {
+        if (count == tokens.length) tokens = Arrays.copyOf(tokens, count * 2);
+        tokens[count++] = token;
+    }
+
+    // Body of a quoted token, with its escapes resolved
+    private String quoted(String command, int start, int end) {
+        var escape = command.indexOf('\\', start);
+        if (escape == -1 || escape >= end) return command.substring(start, end);
+
+        sb.setLength(0);
+        for (var i = start; i < end; i++) {
+            if (isEscape(command, i)) i++;
+            sb.append(command.charAt(i));
+        }
+        return sb.toString();
+    }
+
+    private static int closingQuote(String command, int from) {
+        for (var i = from; i < command.length(); i++) {
+            var c = command.charAt(i);
+            if (c == '"') return i;
+            if (isEscape(command, i)) i++;
+        }
+        return -1;
+    }
+
+    private static boolean isEscape(String command, int i) {
+        if (command.charAt(i) != '\\' || i + 1 >= command.length()) return false;
+        var next = command.charAt(i + 1);
+        return next == '"' || next == '\\';
+    }
 
-        return new AbstractMap.SimpleEntry<>(cmd, args);
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
     }
 
 }
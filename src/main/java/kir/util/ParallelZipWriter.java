@@ -0,0 +1,465 @@
+package kir.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Zip writer that compresses entries, and fixed-size blocks of large entries, on a pool while
+ * the caller keeps walking the source tree. Finished entries are written to the output in the
+ * order they were added, so the result is an ordinary zip that can also be streamed.
+ * Blocks are only read and compressed a window ahead of the output, about four per thread,
+ * and each one is dropped once written, so memory does not grow with the size of an entry.
+ * <p>
+ * Blocks of one entry are raw deflate streams primed with the previous 32 KB as dictionary and
+ * ended with a sync flush, so their concatenation is a single valid deflate stream. Content that
+ * does not compress (media, archives), and every file at {@link Deflater#NO_COMPRESSION}, is
+ * deflated at level 0: its blocks go out as they are read, the CRC is computed in the same pass
+ * and the first bytes of an entry never wait for the whole file to be read.
+ */
+final class ParallelZipWriter implements Closeable {
+
+    static final int BLOCK_SIZE = 1 << 20;
+    private static final int DICT_SIZE = 32 * 1024;
+    private static final int PROBE_SIZE = 64 * 1024;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "mp4", "mkv", "avi", "mov", "webm", "flv", "wmv", "m4v", "ts", "mpg", "mpeg",
+            "mp3", "aac", "ogg", "opus", "flac", "m4a",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "apk", "docx", "xlsx", "pptx");
+
+    private final Counter out;
+    private final int level;
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    private final ArrayDeque<Pending> queue;
+    private final List<Central> central;
+    private int inFlight;
+
+    ParallelZipWriter(OutputStream out, int level, ExecutorService pool, int parallelism) {
+        this.out = new Counter(out);
+        this.level = level;
+        this.pool = pool;
+        this.maxInFlight = Math.max(4, parallelism * 4);
+        this.queue = new ArrayDeque<>();
+        this.central = new ArrayList<>();
+    }
+
+    void putDirectory(String name, long mtime) throws IOException {
+        enqueue(new Directory(name.endsWith("/") ? name : name + "/", mtime));
+    }
+
+    void putFile(Path file, String name) throws IOException {
+        var size = Files.size(file);
+        var mtime = Files.getLastModifiedTime(file).toMillis();
+        var blocks = (int) Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        var entryLevel = level == Deflater.NO_COMPRESSION || isIncompressible(file, size) ? Deflater.NO_COMPRESSION : level;
+        enqueue(new Deflated(name, mtime, file, size, blocks, entryLevel));
+    }
+
+    /**
+     * Writes every pending entry and the central directory. The underlying stream is not closed.
+     */
+    void finish() throws IOException {
+        while (!queue.isEmpty()) writeHead();
+        writeCentralDirectory();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (var pending : queue) pending.cancel();
+        queue.clear();
+    }
+
+    private void enqueue(Pending pending) throws IOException {
+        queue.add(pending);
+        inFlight += pending.weight();
+        // Write whatever is already done so the output keeps flowing, block when too much is buffered
+        while (!queue.isEmpty() && (inFlight > maxInFlight || queue.peek().isDone())) writeHead();
+    }
+
+    private void writeHead() throws IOException {
+        var pending = queue.poll();
+        inFlight -= pending.weight();
+        try {
+            central.add(pending.write());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException u) throw u.getCause();
+            throw e;
+        }
+    }
+
+    private boolean isIncompressible(Path file, long size) {
+        var name = file.getFileName().toString();
+        var dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) return true;
+        if (size < 4096) return false;
+
+        // Unknown type, check whether a sample shrinks at all
+        var sample = new byte[(int) Math.min(PROBE_SIZE, size)];
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            readFully(fc, ByteBuffer.wrap(sample), 0);
+        } catch (IOException e) {
+            return false;
+        }
+        var def = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            def.setInput(sample);
+            def.finish();
+            var sink = new byte[PROBE_SIZE];
+            while (!def.finished()) def.deflate(sink);
+            return def.getBytesWritten() > sample.length * 0.97;
+        } finally {
+            def.end();
+        }
+    }
+
+    private static Block deflate(Path file, long offset, int len, boolean last, int level) {
+        // Level 0 only copies, a dictionary would not be used
+        var dictLen = level == Deflater.NO_COMPRESSION ? 0 : (int) Math.min(DICT_SIZE, offset);
+        var buf = new byte[dictLen + len];
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            readFully(fc, ByteBuffer.wrap(buf), offset - dictLen);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        var crc = new CRC32();
+        crc.update(buf, dictLen, len);
+
+        var def = new Deflater(level, true);
+        try {
+            if (dictLen > 0) def.setDictionary(buf, 0, dictLen);
+            def.setInput(buf, dictLen, len);
+            var data = new byte[len + (len >> 3) + 64];
+            var count = 0;
+            if (last) {
+                def.finish();
+                while (!def.finished()) {
+                    if (count == data.length) data = Arrays.copyOf(data, data.length * 2);
+                    count += def.deflate(data, count, data.length - count);
+                }
+            } else {
+                // A sync flush ends the block on a byte boundary without marking the stream final
+                int n;
+                do {
+                    if (count == data.length) data = Arrays.copyOf(data, data.length * 2);
+                    n = def.deflate(data, count, data.length - count, Deflater.SYNC_FLUSH);
+                    count += n;
+                } while (count == data.length);
+            }
+            // Kept until written, compressible blocks should not hold their whole input size
+            if (count < data.length >> 1) data = Arrays.copyOf(data, count);
+            return new Block(data, count, crc.getValue(), len);
+        } finally {
+            def.end();
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            var n = fc.read(buf, position);
+            if (n < 0) throw new EOFException("File changed while it was being archived");
+            position += n;
+        }
+    }
+
+    /**
+     * Combines the CRC-32 of two adjacent byte ranges, port of zlib's {@code crc32_combine}.
+     */
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) return crc1;
+        var even = new long[32];
+        var odd = new long[32];
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (var n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0) break;
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        for (var i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (var n = 0; n < 32; n++) square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+
+    // ---- Entry kinds ----
+
+    private record Block(byte[] data, int length, long crc, long size) {}
+
+    private record Central(byte[] name, int method, int flags, long crc, long csize, long size, long offset, long dosTime) {}
+
+    private abstract class Pending {
+        final byte[] name;
+        final long dosTime;
+
+        Pending(String name, long mtime) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.dosTime = dosTime(mtime);
+        }
+
+        abstract int weight();
+        abstract boolean isDone();
+        abstract Central write() throws IOException;
+        abstract void cancel();
+    }
+
+    /** Directory, stored without content. */
+    private final class Directory extends Pending {
+
+        Directory(String name, long mtime) {
+            super(name, mtime);
+        }
+
+        @Override int weight() { return 1; }
+        @Override boolean isDone() { return true; }
+        @Override void cancel() {}
+
+        @Override
+        Central write() throws IOException {
+            var offset = out.count;
+            writeLocalHeader(name, 0, 0, 0, 0, 0, dosTime);
+            return new Central(name, 0, 0, 0, 0, 0, offset, dosTime);
+        }
+    }
+
+    /**
+     * Entry deflated in blocks, written with a data descriptor since sizes are only known at the end.
+     * Only a window of its blocks is in flight, the next one is submitted as one is written.
+     */
+    private final class Deflated extends Pending {
+        private final Path file;
+        private final long size;
+        private final int blocks;
+        private final int level;
+        private final ArrayDeque<CompletableFuture<Block>> window;
+        private int submitted;
+
+        Deflated(String name, long mtime, Path file, long size, int blocks, int level) {
+            super(name, mtime);
+            this.file = file;
+            this.size = size;
+            this.blocks = blocks;
+            this.level = level;
+            this.window = new ArrayDeque<>();
+            while (submitted < blocks && window.size() < maxInFlight) submitNext();
+        }
+
+        private void submitNext() {
+            long offset = (long) submitted * BLOCK_SIZE;
+            var len = (int) Math.min(BLOCK_SIZE, size - offset);
+            var last = ++submitted == blocks;
+            window.add(CompletableFuture.supplyAsync(() -> deflate(file, offset, len, last, level), pool));
+        }
+
+        @Override int weight() { return window.size(); }
+        @Override boolean isDone() { return window.peek().isDone(); }
+        @Override void cancel() { window.forEach(f -> f.cancel(false)); }
+
+        @Override
+        Central write() throws IOException {
+            var offset = out.count;
+            writeLocalHeader(name, 8, 8, 0, 0, 0, dosTime);
+            long crc = 0;
+            long csize = 0;
+            for (var i = 0; i < blocks; i++) {
+                var b = window.poll().join();
+                // Keeps the pool busy while this block is written
+                if (submitted < blocks) submitNext();
+                out.write(b.data, 0, b.length);
+                crc = crc32Combine(crc, b.crc, b.size);
+                csize += b.length;
+            }
+            writeDataDescriptor(crc, csize, size);
+            return new Central(name, 8, 8, crc, csize, size, offset, dosTime);
+        }
+    }
+
+    // ---- Zip records ----
+
+    private void writeLocalHeader(byte[] name, int method, int flags, long crc, long csize, long size, long dosTime) throws IOException {
+        var zip64 = csize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        writeInt(0x04034b50L);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(flags | 0x800);  // UTF-8 names
+        writeShort(method);
+        writeInt(dosTime);
+        writeInt(crc);
+        writeInt(zip64 ? ZIP64_MAGIC : csize);
+        writeInt(zip64 ? ZIP64_MAGIC : size);
+        writeShort(name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(size);
+            writeLong(csize);
+        }
+    }
+
+    private void writeDataDescriptor(long crc, long csize, long size) throws IOException {
+        writeInt(0x08074b50L);
+        writeInt(crc);
+        if (csize >= ZIP64_MAGIC || size >= ZIP64_MAGIC) {
+            writeLong(csize);
+            writeLong(size);
+        } else {
+            writeInt(csize);
+            writeInt(size);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        var start = out.count;
+        for (var e : central) {
+            var extra = (e.size >= ZIP64_MAGIC ? 8 : 0) + (e.csize >= ZIP64_MAGIC ? 8 : 0) + (e.offset >= ZIP64_MAGIC ? 8 : 0);
+            writeInt(0x02014b50L);
+            writeShort(extra > 0 ? 45 : 20);
+            writeShort(extra > 0 ? 45 : 20);
+            writeShort(e.flags | 0x800);
+            writeShort(e.method);
+            writeInt(e.dosTime);
+            writeInt(e.crc);
+            writeInt(Math.min(e.csize, ZIP64_MAGIC));
+            writeInt(Math.min(e.size, ZIP64_MAGIC));
+            writeShort(e.name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+            writeShort(0);  // Comment
+            writeShort(0);  // Disk
+            writeShort(0);  // Internal attributes
+            writeInt(0);    // External attributes
+            writeInt(Math.min(e.offset, ZIP64_MAGIC));
+            out.write(e.name);
+            if (extra > 0) {
+                writeShort(0x0001);
+                writeShort(extra);
+                if (e.size >= ZIP64_MAGIC) writeLong(e.size);
+                if (e.csize >= ZIP64_MAGIC) writeLong(e.csize);
+                if (e.offset >= ZIP64_MAGIC) writeLong(e.offset);
+            }
+        }
+        var end = out.count;
+        var count = central.size();
+        var cdSize = end - start;
+
+        if (count >= 0xFFFF || start >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdSize);
+            writeLong(start);
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, 0xFFFF));
+        writeShort(Math.min(count, 0xFFFF));
+        writeInt(Math.min(cdSize, ZIP64_MAGIC));
+        writeInt(Math.min(start, ZIP64_MAGIC));
+        writeShort(0);
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long v) throws IOException {
+        writeShort((int) (v & 0xFFFF));
+        writeShort((int) ((v >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & 0xFFFFFFFFL);
+        writeInt(v >>> 32);
+    }
+
+    private static long dosTime(long millis) {
+        var d = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (d.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return ((long) (d.getYear() - 1980) << 25) | ((long) d.getMonthValue() << 21) | ((long) d.getDayOfMonth() << 16)
+                | ((long) d.getHour() << 11) | ((long) d.getMinute() << 5) | (d.getSecond() >> 1);
+    }
+
+    private static final class Counter extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        Counter(OutputStream out) {
+            this.out = new BufferedOutputStream(out, 64 * 1024);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+}
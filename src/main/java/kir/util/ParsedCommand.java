@@ -0,0 +1,65 @@
+package kir.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Result of {@link CommandParser#parse(String)}: the command name and its arguments.
+ * Still usable as a {@code Map.Entry<String, List<String>>} by older callers.
+ */
+public final class ParsedCommand implements Map.Entry<String, List<String>> {
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private final String name;
+    private final String[] args;
+
+    ParsedCommand(String name, String[] args) {
+        this.name = name;
+        this.args = args.length == 0 ? NO_ARGS : args;
+    }
+
+    public String getName() {
+        return name;
+    }
+    public int getArgCount() {
+        return args.length;
+    }
+    public String getArg(int index) {
+        return args[index];
+    }
+    public String[] getArgs() {
+        return args.length == 0 ? NO_ARGS : args.clone();
+    }
+
+    @Override
+    public String getKey() {
+        return name;
+    }
+    @Override
+    public List<String> getValue() {
+        return Collections.unmodifiableList(Arrays.asList(args));
+    }
+    @Override
+    public List<String> setValue(List<String> value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Map.Entry<?, ?> e)) return false;
+        return Objects.equals(name, e.getKey()) && Objects.equals(getValue(), e.getValue());
+    }
+    @Override
+    public int hashCode() {
+        return name.hashCode() ^ getValue().hashCode();
+    }
+    @Override
+    public String toString() {
+        return name + "=" + Arrays.toString(args);
+    }
+
+}
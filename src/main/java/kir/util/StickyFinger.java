@@ -1,14 +1,26 @@
 package kir.util;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 public final class StickyFinger {
 
@@ -20,47 +32,100 @@ public final class StickyFinger {
     }
 
     public static Path zip(String zipName, Path... src) {
-        if (src.length == 0) throw new IllegalArgumentException("Source files must not be empty");
-        if (Arrays.stream(src).anyMatch(p -> !Files.exists(p)))
-            throw new RuntimeException("Invalid source.");
+        validate(src);
+
+        var zipPath = Path.of(zipName);
+
+        try (var os = Files.newOutputStream(zipPath)) {
+            zip(os, src);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return zipPath;
+    }
+
+    public static Path zip(String zipName, int level, Path... src) {
+        validate(src);
 
         var zipPath = Path.of(zipName);
 
-        try (var zos = new ZipOutputStream(Files.newOutputStream(zipPath))) {
-            zos.setLevel(Deflater.NO_COMPRESSION);
-            var commonPath = src[0].getParent();
+        try (var os = Files.newOutputStream(zipPath)) {
+            zip(os, level, Runtime.getRuntime().availableProcessors(), src);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return zipPath;
+    }
+
+    /**
+     * Writes the archive straight to {@code os} while the source tree is walked, entries go
+     * out as soon as they are read. The stream is finished but not closed.
+     */
+    public static void zip(OutputStream os, Path... src) throws IOException {
+        zip(os, Deflater.NO_COMPRESSION, SharedPool.POOL, src);
+    }
+
+    /**
+     * Same as {@link #zip(OutputStream, Path...)} but deflates at {@code level} using
+     * {@code parallelism} threads. Large files are split in blocks compressed concurrently,
+     * already compressed content such as videos or archives is passed through uncompressed.
+     */
+    public static void zip(OutputStream os, int level, int parallelism, Path... src) throws IOException {
+        if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be greater than 0");
+
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            zip(os, level, pool, src);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Same as {@link #zip(OutputStream, int, int, Path...)} but compresses on {@code pool},
+     * which is shared with its other users and left running.
+     */
+    public static void zip(OutputStream os, int level, ForkJoinPool pool, Path... src) throws IOException {
+        validate(src);
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level " + level);
+
+        try (var zw = new ParallelZipWriter(os, level, pool, pool.getParallelism())) {
+            var commonPath = src[0].toAbsolutePath().getParent();
             for (var item : src) {
+                item = item.toAbsolutePath();
                 if (Files.isDirectory(item)) {
                     try (var ps = Files.walk(item)) {
                         ps.forEach(path -> {
                             try {
-                                var relativePath = commonPath.relativize(path);
-                                var zipEntry = new ZipEntry(relativePath.toString());
-
-                                if (Files.isDirectory(path)) {
-                                    zipEntry = new ZipEntry(relativePath + "/");
-                                    zos.putNextEntry(zipEntry);
-                                } else {
-                                    zos.putNextEntry(zipEntry);
-                                    Files.copy(path, zos);
-                                }
-                                zos.closeEntry();
+                                var entryName = entryName(commonPath.relativize(path));
+                                if (Files.isDirectory(path)) zw.putDirectory(entryName, Files.getLastModifiedTime(path).toMillis());
+                                else zw.putFile(path, entryName);
                             } catch (IOException e) {
-                                throw new RuntimeException(e);
+                                throw new UncheckedIOException(e);
                             }
                         });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
                     }
                 } else {
-                    zos.putNextEntry(new ZipEntry(item.getFileName().toString()));
-                    Files.copy(item, zos);
-                    zos.closeEntry();
+                    zw.putFile(item, item.getFileName().toString());
                 }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            zw.finish();
         }
+    }
 
-        return zipPath;
+    private static String entryName(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+
+    private static void validate(Path... src) {
+        if (src.length == 0) throw new IllegalArgumentException("Source files must not be empty");
+        if (Arrays.stream(src).anyMatch(p -> !Files.exists(p)))
+            throw new RuntimeException("Invalid source.");
     }
 
     public static void unzip (Path zipPath) {
@@ -68,35 +133,115 @@ public final class StickyFinger {
     }
 
     public static void unzip(Path zipPath, Path destPath) {
+        unzip(zipPath, destPath, SharedPool.POOL);
+    }
+
+    /**
+     * Extracts the archive through its central directory, entries are inflated concurrently on
+     * {@code parallelism} threads. Directories are created once upfront and every file is
+     * written into a channel already sized to the entry.
+     */
+    public static void unzip(Path zipPath, Path destPath, int parallelism) {
         if (!Files.exists(zipPath)) throw new RuntimeException("Invalid zip file.");
-        if (!Files.exists(destPath)) {
-            try {
-                Files.createDirectories(destPath);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be greater than 0");
+
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            unzip(zipPath, destPath, pool);
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        try (var zis = new ZipInputStream(Files.newInputStream(zipPath))) {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                var entryPath = destPath.resolve(entry.getName());
-                if (entry.isDirectory()) Files.createDirectories(entryPath);
-                else {
-                    Files.createDirectories(entryPath.getParent());
-                    try (var os = Files.newOutputStream(entryPath)) {
-                        var buffer = new byte[FILE_BUFFER];
-                        int bytesRead;
-                        while ((bytesRead = zis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
-                    }
+    private static void unzip(Path zipPath, Path destPath, ForkJoinPool pool) {
+        var root = destPath.toAbsolutePath().normalize();
+        try (var zf = new ZipFile(zipPath.toFile())) {
+            var dirs = new TreeSet<Path>();
+            var tasks = new ArrayList<Callable<Void>>();
+            dirs.add(root);
+            for (var entry : Collections.list(zf.entries())) {
+                var entryPath = resolveEntry(root, entry.getName());
+                if (entry.isDirectory()) {
+                    dirs.add(entryPath);
+                    continue;
                 }
+                dirs.add(entryPath.getParent());
+                tasks.add(() -> {
+                    extract(zf, entry, entryPath);
+                    return null;
+                });
             }
-            zis.closeEntry();
+
+            // Sorted, so parents come before their children
+            for (var dir : dirs) Files.createDirectories(dir);
+
+            for (var task : pool.invokeAll(tasks)) task.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void extract(ZipFile zf, ZipEntry entry, Path entryPath) throws IOException {
+        var size = entry.getSize();
+        try (var is = zf.getInputStream(entry); var raf = new RandomAccessFile(entryPath.toFile(), "rw")) {
+            raf.setLength(Math.max(size, 0));
+            var ch = raf.getChannel();
+            if (size >= 0 && size <= FILE_BUFFER * 8) {
+                // Small entries are inflated in one go and written with a single call
+                var bb = ByteBuffer.wrap(is.readNBytes((int) size));
+                while (bb.hasRemaining()) ch.write(bb);
+                return;
+            }
+            var buffer = new byte[FILE_BUFFER * 8];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                var bb = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (bb.hasRemaining()) ch.write(bb);
+            }
         }
     }
 
+    private static Path resolveEntry(Path root, String name) throws IOException {
+        var entryPath = root.resolve(name).normalize();
+        if (!entryPath.startsWith(root)) throw new IOException("Entry is outside of the target directory: " + name);
+        return entryPath;
+    }
+
+    /**
+     * Extracts entries as they are read from {@code is}, so an archive can be unpacked while it
+     * is still arriving. Reading stops at the end of the last entry, {@code is} is not closed.
+     */
+    public static void unzip(InputStream is, Path destPath) throws IOException {
+        if (!Files.exists(destPath)) Files.createDirectories(destPath);
+        var root = destPath.toAbsolutePath().normalize();
+
+        var zis = new ZipInputStream(is);
+        ZipEntry entry;
+        var buffer = new byte[FILE_BUFFER];
+        while ((entry = zis.getNextEntry()) != null) {
+            var entryPath = resolveEntry(root, entry.getName());
+            if (entry.isDirectory()) Files.createDirectories(entryPath);
+            else {
+                Files.createDirectories(entryPath.getParent());
+                try (var os = Files.newOutputStream(entryPath)) {
+                    int bytesRead;
+                    while ((bytesRead = zis.read(buffer)) != -1) {
+                        os.write(buffer, 0, bytesRead);
+                    }
+                }
+            }
+        }
+        zis.closeEntry();
+    }
+
+    // Used by the calls that do not bring a pool or a thread count, created on first use
+    private static final class SharedPool {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
 }
@@ -0,0 +1,254 @@
+package kir.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deletes directory trees on a fork-join pool. Every subdirectory is a task of its own and the
+ * files of a directory are deleted in batches while it is still being read, so wide and deep
+ * trees both keep all threads busy. A directory is removed once everything below it is gone.
+ * Symbolic links are deleted, never followed. The first failure stops the deletion and is
+ * thrown, {@link #cancel()} stops it quietly. Once stopped, a deleter deletes nothing more.
+ * A deleter given a pool shares it with whoever else uses it and leaves it running, otherwise
+ * each deletion starts a pool of its own and shuts it down once done.
+ */
+public final class TreeDeleter {
+
+    // Files of a directory deleted by one task
+    private static final int BATCH = 256;
+
+    private final int parallelism;
+    private final ForkJoinPool pool;   // null when each deletion starts its own
+    private final LongAdder files;
+    private final LongAdder directories;
+    private Progress progress;
+    private long interval;
+    private volatile boolean cancelled;
+    private volatile IOException failure;
+
+    public TreeDeleter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public TreeDeleter(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be greater than 0");
+        this.parallelism = parallelism;
+        this.pool = null;
+        this.files = new LongAdder();
+        this.directories = new LongAdder();
+    }
+
+    public TreeDeleter(ForkJoinPool pool) {
+        this.parallelism = pool.getParallelism();
+        this.pool = pool;
+        this.files = new LongAdder();
+        this.directories = new LongAdder();
+    }
+
+    /**
+     * Calls {@code progress} every {@code intervalMillis} while a deletion runs, on the thread
+     * that started it. A progress that throws cancels the deletion.
+     */
+    public void setProgress(Progress progress, long intervalMillis) {
+        if (intervalMillis <= 0) throw new IllegalArgumentException("Progress interval must be greater than 0");
+        this.progress = progress;
+        this.interval = intervalMillis;
+    }
+
+    /**
+     * Deletes {@code dir} and everything below it.
+     * @return the number of files and directories deleted.
+     */
+    public long delete(Path dir) throws IOException {
+        return run(new DirectoryTask(dir, true, true));
+    }
+
+    /**
+     * Deletes every file below {@code dir}, directories are kept.
+     * @return the number of files deleted.
+     */
+    public long deleteFiles(Path dir) throws IOException {
+        return run(new DirectoryTask(dir, false, false));
+    }
+
+    /**
+     * Stops the running deletion, tasks finish the file at hand and what is left stays in place.
+     * May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getDeletedFiles() {
+        return files.sum();
+    }
+
+    public long getDeletedDirectories() {
+        return directories.sum();
+    }
+
+    private long run(DirectoryTask root) throws IOException {
+        // Files are deleted through a link to their directory, a link to a directory to delete is not followed
+        var options = root.removeSelf ? new LinkOption[]{LinkOption.NOFOLLOW_LINKS} : new LinkOption[0];
+        if (!Files.isDirectory(root.dir, options)) throw new IOException("Not a directory: " + root.dir);
+        var pool = this.pool != null ? this.pool : new ForkJoinPool(parallelism);
+        try {
+            var future = pool.submit(root);
+            while (true) {
+                try {
+                    if (progress == null) future.get();
+                    else future.get(interval, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    try {
+                        progress.report(getDeletedFiles(), getDeletedDirectories());
+                    } catch (IOException | RuntimeException ex) {
+                        cancel();
+                        future.join();
+                        throw ex;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deleting " + root.dir);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (pool != this.pool) pool.shutdownNow();
+        }
+        if (failure != null) throw failure;
+        return getDeletedFiles() + getDeletedDirectories();
+    }
+
+    // Keeps the first failure, the others are likely consequences of it
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure == null) failure = e;
+        }
+        cancelled = true;
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            Files.delete(file);
+            files.increment();
+        } catch (NoSuchFileException ignored) {
+            // Deleted by someone else meanwhile
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Progress {
+        void report(long files, long directories) throws IOException;
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final boolean removeSelf;
+        private final boolean removeDirectories;
+
+        DirectoryTask(Path dir, boolean removeSelf, boolean removeDirectories) {
+            this.dir = dir;
+            this.removeSelf = removeSelf;
+            this.removeDirectories = removeDirectories;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) return;
+            var tasks = new ArrayList<RecursiveAction>();
+            var batch = new ArrayList<Path>(BATCH);
+            try (var entries = Files.newDirectoryStream(dir)) {
+                for (var path : entries) {
+                    if (cancelled) break;
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        tasks.add(fork(new DirectoryTask(path, removeDirectories, removeDirectories)));
+                    } else {
+                        batch.add(path);
+                        if (batch.size() == BATCH) {
+                            tasks.add(fork(new FileTask(batch)));
+                            batch = new ArrayList<>(BATCH);
+                        }
+                    }
+                }
+            } catch (NoSuchFileException ignored) {
+                // Deleted by someone else meanwhile
+            } catch (IOException e) {
+                fail(e);
+            } catch (DirectoryIteratorException e) {
+                fail(e.getCause());
+            }
+            // The last batch runs here rather than waiting for a thread
+            for (var file : batch) {
+                if (cancelled) break;
+                deleteFile(file);
+            }
+            for (var task : tasks) task.join();
+
+            if (!removeSelf || cancelled) return;
+            try {
+                Files.delete(dir);
+                directories.increment();
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private RecursiveAction fork(RecursiveAction task) {
+            task.fork();
+            return task;
+        }
+    }
+
+    private final class FileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> batch;
+
+        FileTask(List<Path> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        protected void compute() {
+            for (var file : batch) {
+                if (cancelled) return;
+                deleteFile(file);
+            }
+        }
+    }
+
+}
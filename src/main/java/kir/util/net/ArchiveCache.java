@@ -0,0 +1,258 @@
+package kir.util.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Archives sent by {@code cp}, keyed by a fingerprint of the paths, sizes and modification times
+ * of the targets. A miss streams the archive to the client while keeping a copy, unless it grows
+ * larger than the whole cache, a hit sends the stored copy with zero-copy. Requests for an archive that is still being built wait for
+ * it instead of zipping the same tree again. Least recently used archives are evicted once
+ * the total size exceeds the limit.
+ */
+final class ArchiveCache {
+
+    private static final String EXTENSION = ".zip";
+    private static final String BUILDING = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, CompletableFuture<Void>> builds;
+    private long size;
+    private boolean loaded;
+
+    ArchiveCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.builds = new HashMap<>();
+        this.size = 0;
+        this.loaded = false;
+    }
+
+    void send(NetTransceiver transceiver, List<Path> src, ServerMetrics metrics) throws IOException {
+        String key;
+        try {
+            key = fingerprint(src);
+        } catch (IOException | UncheckedIOException e) {
+            // Not cached, streaming it tells the client what is wrong with the tree
+            transceiver.streamArchive(src, null);
+            return;
+        }
+        while (true) {
+            CompletableFuture<Void> build;
+            Entry hit;
+            synchronized (this) {
+                load();
+                hit = entries.get(key);
+                if (hit != null) hit.readers++;
+                build = hit == null ? builds.get(key) : null;
+                if (hit == null && build == null) builds.put(key, new CompletableFuture<>());
+            }
+
+            if (hit != null) {
+                if (metrics != null) metrics.archiveHit();
+                try {
+                    transceiver.sendFile(hit.file.toFile(), true);
+                } finally {
+                    release(hit);
+                }
+                return;
+            }
+            if (build == null) {
+                if (metrics != null) metrics.archiveMiss();
+                build(transceiver, src, key);
+                return;
+            }
+            try {
+                build.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an archive");
+            } catch (ExecutionException e) {
+                // The build failed, this request streams its own archive
+                transceiver.streamArchive(src, null);
+                return;
+            }
+        }
+    }
+
+    private void build(NetTransceiver transceiver, List<Path> src, String key) throws IOException {
+        CompletableFuture<Void> build;
+        synchronized (this) {
+            build = builds.get(key);
+        }
+        var temp = directory.resolve(key + BUILDING);
+        IOException failure = null;
+        try {
+            boolean kept;
+            // Past the limit the copy is dropped, the requests waiting for it stream their own
+            try (var copy = new BoundedOutputStream(Files.newOutputStream(temp), maxBytes,
+                    () -> abandon(key, build, new IOException("Archive larger than the cache")))) {
+                kept = transceiver.streamArchive(src, copy);
+            } catch (NetTransceiver.PeerException e) {
+                // The client went away, the copy was still completed for the others
+                failure = e.getCause();
+                kept = true;
+            }
+            if (kept) {
+                var file = Files.move(temp, directory.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+                synchronized (this) {
+                    add(key, file, Files.size(file));
+                    builds.remove(key);
+                }
+                build.complete(null);
+            } else {
+                Files.deleteIfExists(temp);
+                abandon(key, build, new IOException("Archive copy failed"));
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            abandon(key, build, e);
+            throw e;
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void abandon(String key, CompletableFuture<Void> build, Exception cause) {
+        synchronized (this) {
+            builds.remove(key, build);
+        }
+        build.completeExceptionally(cause);
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.readers--;
+        evict();
+    }
+
+    private void add(String key, Path file, long length) {
+        entries.put(key, new Entry(file, length));
+        size += length;
+        evict();
+    }
+
+    // Archives still being sent are skipped, they go once their last reader is done
+    private void evict() {
+        var it = entries.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            var entry = it.next();
+            if (entry.readers > 0) continue;
+            try {
+                Files.deleteIfExists(entry.file);
+            } catch (IOException e) {
+                continue;
+            }
+            size -= entry.length;
+            it.remove();
+        }
+    }
+
+    // Archives left by a previous run stay valid, their key covers every modification time
+    private void load() throws IOException {
+        if (loaded) return;
+        loaded = true;
+        Files.createDirectories(directory);
+        try (var files = Files.list(directory)) {
+            for (var file : files.sorted(Comparator.comparingLong(ArchiveCache::lastModified)).toList()) {
+                var name = file.getFileName().toString();
+                if (name.endsWith(BUILDING)) Files.deleteIfExists(file);
+                else if (name.endsWith(EXTENSION)) add(name.substring(0, name.length() - EXTENSION.length()), file, Files.size(file));
+            }
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String fingerprint(List<Path> src) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (var root : src) {
+            try (var paths = Files.walk(root)) {
+                for (var path : paths.sorted().toList()) {
+                    var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    var line = path.toAbsolutePath().normalize() + "\0" + attrs.isDirectory() + "\0" + attrs.size()
+                            + "\0" + attrs.lastModifiedTime().toMillis() + "\n";
+                    sha.update(line.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            sha.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(sha.digest());
+    }
+
+    /**
+     * Fails every write once more than {@code maxBytes} were written, calling {@code exceeded}
+     * the first time.
+     */
+    private static final class BoundedOutputStream extends FilterOutputStream {
+
+        private final long maxBytes;
+        private final Runnable exceeded;
+        private long written;
+
+        BoundedOutputStream(OutputStream out, long maxBytes, Runnable exceeded) {
+            super(out);
+            this.maxBytes = maxBytes;
+            this.exceeded = exceeded;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > maxBytes) {
+                if (written <= maxBytes) exceeded.run();
+                written = maxBytes + 1;
+                throw new IOException("Archive larger than the cache");
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+
+    }
+
+    private static final class Entry {
+        private final Path file;
+        private final long length;
+        private int readers;
+
+        Entry(Path file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package kir.util.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Shared byte arrays for framing, in power of two size classes from 256 bytes to 8 MB.
+ * A class keeps at most 16 MB of idle arrays, what does not fit is left to the collector.
+ * Requests above the largest class get an array that is never pooled.
+ * <p>
+ * Datagrams are received into and sent from direct buffers, pooled the same way in classes
+ * from 256 bytes to 64 KB, the largest datagram, of at most 8 MB each.
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 23;
+    private static final int CLASS_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_POOLED = 1 << MAX_SHIFT;
+    private static final int MAX_DIRECT_SHIFT = 16;
+    private static final int DIRECT_CLASS_BYTES = 8 * 1024 * 1024;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayBlockingQueue<byte[]>[] CLASSES = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayBlockingQueue<ByteBuffer>[] DIRECT = new ArrayBlockingQueue[MAX_DIRECT_SHIFT - MIN_SHIFT + 1];
+
+    static {
+        for (var shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++)
+            CLASSES[shift - MIN_SHIFT] = new ArrayBlockingQueue<>(Math.max(2, Math.min(1024, CLASS_BYTES >> shift)));
+        for (var shift = MIN_SHIFT; shift <= MAX_DIRECT_SHIFT; shift++)
+            DIRECT[shift - MIN_SHIFT] = new ArrayBlockingQueue<>(Math.min(1024, DIRECT_CLASS_BYTES >> shift));
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return an array of at least {@code size} bytes, its content is undefined.
+     */
+    static byte[] acquire(int size) {
+        if (size > MAX_POOLED) return new byte[size];
+        var shift = shift(size);
+        var buf = CLASSES[shift - MIN_SHIFT].poll();
+        return buf != null ? buf : new byte[1 << shift];
+    }
+
+    /**
+     * @return a direct buffer of at least {@code size} bytes, cleared, its content is undefined.
+     */
+    static ByteBuffer acquireDirect(int size) {
+        if (size > 1 << MAX_DIRECT_SHIFT) return ByteBuffer.allocateDirect(size);
+        var shift = shift(size);
+        var buf = DIRECT[shift - MIN_SHIFT].poll();
+        return buf != null ? buf.clear() : ByteBuffer.allocateDirect(1 << shift);
+    }
+
+    static void release(byte[] buf) {
+        var length = buf.length;
+        if (Integer.bitCount(length) != 1) return;
+        var shift = Integer.numberOfTrailingZeros(length);
+        if (shift >= MIN_SHIFT && shift <= MAX_SHIFT) CLASSES[shift - MIN_SHIFT].offer(buf);
+    }
+
+    // Heap buffers are left to the collector, so whatever a transport hands over may be released
+    static void release(ByteBuffer buf) {
+        var capacity = buf.capacity();
+        if (!buf.isDirect() || Integer.bitCount(capacity) != 1) return;
+        var shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift >= MIN_SHIFT && shift <= MAX_DIRECT_SHIFT) DIRECT[shift - MIN_SHIFT].offer(buf);
+    }
+
+    private static int shift(int size) {
+        return size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+}
@@ -0,0 +1,83 @@
+package kir.util.net;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a body of {@link Frame#DATA} frames, as written by {@link ChunkedOutputStream},
+ * reporting end of stream at the {@link Frame#END} frame. A {@link Frame#ABORT} frame fails
+ * the read with a {@link NetTransceiver.AbortedException}. Closing the stream drains what is
+ * left of the body.
+ */
+final class ChunkedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final byte[] header;
+    private int remaining;
+    private long read;
+    private boolean eof;
+
+    ChunkedInputStream(DataInputStream in) {
+        this.in = in;
+        this.header = new byte[Frame.HEADER_BYTES];
+    }
+
+    long getBytesRead() {
+        return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) return -1;
+        remaining--;
+        read++;
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!nextChunk()) return -1;
+        var n = in.read(b, off, Math.min(len, remaining));
+        if (n == -1) throw new EOFException("Connection closed inside a chunk");
+        remaining -= n;
+        read += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return remaining;
+    }
+
+    @Override
+    public void close() throws IOException {
+        while (nextChunk()) {
+            in.skipNBytes(remaining);
+            read += remaining;
+            remaining = 0;
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (eof) return false;
+        while (remaining == 0) {
+            var frame = Frame.read(in, header);
+            if (frame.type() == Frame.END) {
+                eof = true;
+                return false;
+            }
+            if (frame.type() == Frame.ABORT) {
+                eof = true;
+                var reason = frame.payload(in);
+                throw new NetTransceiver.AbortedException(StandardCharsets.UTF_8.decode(reason).toString());
+            }
+            remaining = frame.expect(Frame.DATA).length();
+        }
+        return true;
+    }
+
+}
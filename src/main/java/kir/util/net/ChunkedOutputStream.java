@@ -0,0 +1,98 @@
+package kir.util.net;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames a body of unknown length as {@link Frame#DATA} frames terminated by a
+ * {@link Frame#END} frame. Chunks are staged right behind room for their frame header in a
+ * pooled buffer, writes of a chunk or more go out without being copied. Closing the stream
+ * writes the terminator but leaves the socket open, {@link #abort(String)} ends the body with
+ * a {@link Frame#ABORT} frame instead.
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+    private final DataOutputStream out;
+    private final byte[] buffer;
+    private final int capacity;
+    private int count;
+    private long written;
+    private boolean closed;
+
+    ChunkedOutputStream(DataOutputStream out, int chunkSize) {
+        this.out = out;
+        this.buffer = BufferPool.acquire(Frame.HEADER_BYTES + chunkSize);
+        this.capacity = buffer.length - Frame.HEADER_BYTES;
+    }
+
+    long getBytesWritten() {
+        return written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == capacity) flushChunk();
+        buffer[Frame.HEADER_BYTES + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= capacity) {
+            // Large writes skip the staging buffer
+            flushChunk();
+            Frame.write(out, Frame.DATA, b, off, len);
+            written += len;
+            return;
+        }
+        if (len > capacity - count) flushChunk();
+        System.arraycopy(b, off, buffer, Frame.HEADER_BYTES + count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flushChunk();
+            Frame.put(buffer, Frame.END, 0);
+            out.write(buffer, 0, Frame.HEADER_BYTES);
+            out.flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Ends a body that could not be completed, what is staged is dropped and the reader fails
+     * with {@code reason}. The connection stays usable.
+     */
+    void abort(String reason) throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            var payload = reason.getBytes(StandardCharsets.UTF_8);
+            Frame.write(out, Frame.ABORT, payload, 0, payload.length);
+            out.flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (count == 0) return;
+        Frame.put(buffer, Frame.DATA, count);
+        out.write(buffer, 0, Frame.HEADER_BYTES + count);
+        written += count;
+        count = 0;
+    }
+
+}
@@ -1,10 +1,12 @@
 package kir.util.net;
 
 import at.favre.lib.crypto.bcrypt.BCrypt;
+import kir.util.CommandParser;
 import kir.util.Printer;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.InputMismatchException;
 import java.util.Scanner;
@@ -12,17 +14,36 @@ import java.util.Scanner;
 public class ClientTerminal implements Closeable {
     private final Scanner sc;
     private final SocketMode mode;
+    private final int stripes;
     private NetClient client;
 
     public ClientTerminal(SocketMode mode) {
+        this(mode, 1);
+    }
+
+    /**
+     * @param stripes connections used to transfer a single large file, negotiated with the server.
+     */
+    public ClientTerminal(SocketMode mode, int stripes) {
         sc = new Scanner(System.in);
         this.mode = mode;
+        this.stripes = stripes;
     }
 
     public void init() throws IOException {
         while (true) {
             while (!connect());
             Printer.success("Connected");
+            if (mode == SocketMode.MULTICAST) {
+                // Members of a group only receive what the server distributes
+                while (true) {
+                    try {
+                        Printer.success("File saved to " + client.receiveFile().toAbsolutePath());
+                    } catch (SocketTimeoutException e) {
+                        Printer.warning(e.getMessage() + ", still waiting");
+                    }
+                }
+            }
             while (true) {
                 Printer.print("> "); var input = sc.nextLine();
                 if (input.isEmpty()) continue;
@@ -30,6 +51,12 @@ public class ClientTerminal implements Closeable {
                     client.send("dc");
                     break;
                 }
+                var cmd = CommandParser.parse(input);
+                if (cmd.getName().equalsIgnoreCase("ls") && cmd.getArgCount() > 0) {
+                    // Paged listings are printed while the next page is on its way
+                    client.list(input.trim(), Printer::println);
+                    continue;
+                }
                 var resp = client.sendw(input.trim());
                 if (!resp.isEmpty()) Printer.println(resp);
             }
@@ -60,24 +87,19 @@ public class ClientTerminal implements Closeable {
 
     private NetClient authenticate(String endpoint, int port) throws IOException {
         var client = new NetClient(mode, endpoint, port);
-        if (mode == SocketMode.TCP) {
-            var resp = client.receive();
+        client.setStripes(stripes);
+        client.setProgress(Printer::println);
+        var authenticated = client.handshake(() -> {
+            Printer.warning("This endpoint require a password!");
+            Printer.print("Password: "); var pwd = sc.nextLine();
+            return BCrypt.withDefaults().hashToString(12, pwd.trim().toCharArray());
+        });
 
-            if (resp.equalsIgnoreCase("auth")) {
-                Printer.warning("This endpoint require a password!");
-                Printer.print("Password: "); var pwd = sc.nextLine();
-                var hash = BCrypt.withDefaults().hashToString(12, pwd.trim().toCharArray());
-                resp = client.sendw(hash);
-            }
-
-            if (!resp.equalsIgnoreCase("authenticated")) {
-                return null;
-            }
-
-            var serverBufSize = client.receive().trim();
-            Printer.println(serverBufSize);
-            client.setBufferSize(Integer.parseInt(serverBufSize));
+        if (!authenticated) {
+            return null;
         }
+
+        if (mode == SocketMode.TCP) Printer.println(String.valueOf(client.getBufferSize()));
         return client;
     }
 
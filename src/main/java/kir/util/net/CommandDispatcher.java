@@ -0,0 +1,98 @@
+package kir.util.net;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Table of the {@link Handler} methods of a handler class, built once per class. Names are
+ * matched case-insensitively and every method is pre-adapted to {@code (handler, args)}.
+ */
+final class CommandDispatcher {
+
+    private static final Set<String> FT = Set.of("ls", "cd", "cp", "up", "rm", "rmdir");
+    private static final MethodType INVOKER = MethodType.methodType(void.class, CommandHandler.class, String[].class);
+    private static final MethodHandle FIRST_ARG = MethodHandles.insertArguments(
+            MethodHandles.arrayElementGetter(String[].class), 1, 0);
+
+    private static final ClassValue<CommandDispatcher> TABLES = new ClassValue<>() {
+        @Override
+        protected CommandDispatcher computeValue(Class<?> type) {
+            return new CommandDispatcher(type);
+        }
+    };
+
+    private final Map<String, Command> commands;
+
+    private CommandDispatcher(Class<?> type) {
+        this.commands = new HashMap<>();
+        var lookup = MethodHandles.lookup();
+        // Only the methods declared by the concrete class are commands
+        for (var method : type.getDeclaredMethods()) {
+            if (!method.isAnnotationPresent(Handler.class)) continue;
+            var params = method.getParameterTypes();
+            method.setAccessible(true);
+            MethodHandle mh;
+            try {
+                mh = lookup.unreflect(method);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            if (params.length > 0 && params[params.length - 1].isArray()) {
+                mh = mh.asFixedArity();
+            } else if (params.length == 1 && params[0] == String.class) {
+                mh = MethodHandles.filterArguments(mh, 1, FIRST_ARG);
+            } else if (params.length == 0) {
+                mh = MethodHandles.dropArguments(mh, 1, String[].class);
+            } else {
+                throw new IllegalArgumentException("Handler " + method.getName() + " must take no argument, a String or a String array");
+            }
+            var name = method.getName();
+            commands.put(name.toLowerCase(Locale.ROOT), new Command(name, FT.contains(name), mh.asType(INVOKER)));
+        }
+    }
+
+    static CommandDispatcher of(Class<?> type) {
+        return TABLES.get(type);
+    }
+
+    Command lookup(String name) {
+        return commands.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    static final class Command {
+        private final String name;
+        private final boolean fileOperation;
+        private final MethodHandle invoker;
+
+        private Command(String name, boolean fileOperation, MethodHandle invoker) {
+            this.name = name;
+            this.fileOperation = fileOperation;
+            this.invoker = invoker;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isFileOperation() {
+            return fileOperation;
+        }
+
+        void invoke(CommandHandler handler, String[] args) throws IOException {
+            try {
+                invoker.invokeExact(handler, args);
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+}
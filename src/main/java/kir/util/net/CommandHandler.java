@@ -1,24 +1,25 @@
 package kir.util.net;
 
 import kir.util.CommandParser;
-import kir.util.ConsoleColors;
-import kir.util.Printer;
-import kir.util.StickyFinger;
+import kir.util.TreeDeleter;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 public class CommandHandler {
 
-    private static final List<String> FT = List.of("ls", "cd", "cp", "up", "rm", "rmdir");
+    private static final int MAX_CURSORS = 4;
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private final CommandDispatcher dispatcher = CommandDispatcher.of(getClass());
     private final Path rootDir;
     private Path workingDir;
+    // Paged listings waiting for their next page, the oldest is closed past MAX_CURSORS
+    private final LinkedHashMap<Integer, DirectoryListing> cursors = new LinkedHashMap<>();
+    private int nextCursor;
 
     protected NetTransceiver transceiver;
 
@@ -43,55 +44,90 @@ public class CommandHandler {
     }
 
     public final void handle(String cmd) throws IOException {
-        boolean handled = false;
         var cmdArr = CommandParser.parse(cmd);
-        var cmdArgs = cmdArr.getValue().toArray(String[]::new);
-        for (var method : this.getClass().getDeclaredMethods()) {
-            if (method.isAnnotationPresent(Handler.class) && method.getName().equalsIgnoreCase(cmdArr.getKey())) {
-                if (FT.contains(method.getName()) && !transceiver.getSocketMode().equals(SocketMode.TCP)) {
-                    transceiver.send("Current mode " + transceiver.getSocketMode() + " does not support file operations.");
-                    handled = true;
-                    break;
-                }
-                method.setAccessible(true);
-                var paramCount = method.getParameterCount();
-                boolean isParamVarArgs = paramCount > 0 && method.getParameterTypes()[paramCount - 1].isArray();
-                try {
-                    if (isParamVarArgs) method.invoke(this, (Object) cmdArgs);
-                    else if (paramCount == 1) method.invoke(this, cmdArgs[0]);
-                    else method.invoke(this);
-                } catch (IllegalAccessException | InvocationTargetException e) {
-                    throw new RuntimeException(e);
-                }
-                handled = true;
-                break;
+        var command = dispatcher.lookup(cmdArr.getName());
+        if (command == null) {
+            transceiver.send("Invalid command.");
+            return;
+        }
+        if (command.isFileOperation() && transceiver.getSocketMode() == SocketMode.MULTICAST) {
+            transceiver.send("Current mode " + transceiver.getSocketMode() + " does not support file operations.");
+            return;
+        }
+        var metrics = transceiver.getMetrics();
+        var start = System.nanoTime();
+        try {
+            command.invoke(this, cmdArr.getArgs());
+        } finally {
+            if (metrics != null) metrics.command(command.getName(), System.nanoTime() - start);
+        }
+    }
+
+    // Used by HandlerFactory for subclasses built through their parameterless constructor
+    final void attach(NetTransceiver transceiver) {
+        this.transceiver = transceiver;
+    }
+
+    // Called once the session is over, paged listings keep their directory open
+    final void close() {
+        for (var listing : cursors.values()) {
+            try {
+                listing.close();
+            } catch (IOException ignored) {
             }
         }
-        if (!handled)
-            transceiver.send("Invalid command.");
+        cursors.clear();
     }
 
     @Handler
-    private void ls() throws IOException {
-        var response = new StringBuilder();
-        var dirList = new LinkedList<String>();
-        var fileList = new LinkedList<String>();
-
-        try (var paths = Files.newDirectoryStream(workingDir)) {
-            for (var path : paths) {
-                if (Files.isDirectory(path)) {
-                    var txt = Printer.formatc("%s", ConsoleColors.BLUE_BRIGHT, path.getFileName().toString());
-                    dirList.add(txt);
-                } else fileList.add(path.getFileName().toString());
-            }
+    private void ls(String... args) throws IOException {
+        if (args.length == 0) {
+            var listings = transceiver.getListingCache();
+            transceiver.send(listings != null ? listings.get(workingDir) : ListingCache.render(workingDir));
+            return;
         }
 
-        Collections.sort(dirList);
-        Collections.sort(fileList);
+        int cursor;
+        DirectoryListing listing;
+        if (args[0].equals("-c")) {
+            try {
+                cursor = Integer.parseInt(args[1]);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                transceiver.send("Option -c requires a cursor.");
+                return;
+            }
+            listing = cursors.remove(cursor);
+            if (listing == null) {
+                transceiver.send("Unknown or expired cursor.");
+                return;
+            }
+        } else {
+            try {
+                listing = DirectoryListing.open(workingDir, args);
+            } catch (IllegalArgumentException e) {
+                transceiver.send(e.getMessage());
+                return;
+            }
+            cursor = ++nextCursor;
+        }
 
-        if (!dirList.isEmpty()) response.append(String.join("\n", dirList)).append("\n");
-        response.append(String.join("\n", fileList));
-        transceiver.send(response.toString());
+        String page;
+        try {
+            page = listing.page();
+            if (listing.hasMore()) {
+                page += "\n" + DirectoryListing.MORE + cursor;
+                cursors.put(cursor, listing);
+                listing = null;
+                if (cursors.size() > MAX_CURSORS) {
+                    var eldest = cursors.entrySet().iterator();
+                    eldest.next().getValue().close();
+                    eldest.remove();
+                }
+            }
+        } finally {
+            if (listing != null) listing.close();
+        }
+        transceiver.send(page);
     }
 
     @Handler
@@ -130,21 +166,27 @@ public class CommandHandler {
             transceiver.send("ok");
         }
 
-        var tmpZipName = "cache/" + UUID.randomUUID() +".zip";
-        if (targets.size() != 1) {
-            var tmpZip = StickyFinger.zip(tmpZipName, targets);
-            transceiver.sendFile(tmpZip.toFile(), true);
-            Files.delete(tmpZip);
-        } else if (Files.isDirectory(targets.get(0))) {
-            var tmpZip = StickyFinger.zip(tmpZipName, targets.get(0));
-            transceiver.sendFile(tmpZip.toFile(), true);
-            Files.delete(tmpZip);
-        } else transceiver.sendFile(workingDir.resolve(targets.get(0).getFileName()).toFile());
+        if (targets.size() != 1 || Files.isDirectory(targets.get(0))) {
+            try {
+                transceiver.sendArchive(targets);
+            } catch (NetTransceiver.AbortedException ignored) {
+                // The client was told why, the session goes on
+            }
+        } else {
+            transceiver.sendFile(workingDir.resolve(targets.get(0).getFileName()).toFile());
+        }
     }
 
     @Handler
     private void up() throws IOException {
-        transceiver.receiveFile(workingDir);
+        try {
+            transceiver.receiveFile(workingDir);
+        } catch (NetTransceiver.AbortedException e) {
+            invalidate(workingDir, false);
+            transceiver.send("Upload aborted by the client: " + e.getMessage());
+            return;
+        }
+        invalidate(workingDir, false);
         ls();
     }
 
@@ -154,9 +196,14 @@ public class CommandHandler {
         var targetPath = workingDir.resolve(fileName);
 
         if (fileName.equals("*")) {
-            rmAll(workingDir);
+            try {
+                delete(workingDir, false);
+            } finally {
+                invalidate(workingDir, true);
+            }
         } else if (Files.exists(targetPath) && !Files.isDirectory(targetPath)) {
             Files.delete(targetPath);
+            invalidate(workingDir, false);
         } else {
             transceiver.send("Target file does not exist.");
             return;
@@ -172,28 +219,36 @@ public class CommandHandler {
             transceiver.send("Target does not exist.");
             return;
         }
-        if (!Files.isDirectory(dirPath)) {
+        if (!Files.isDirectory(dirPath, LinkOption.NOFOLLOW_LINKS)) {
             transceiver.send("Target is not a directory.");
             return;
         }
 
-        rmdirInternal(dirPath);
+        try {
+            delete(dirPath, true);
+        } finally {
+            invalidate(workingDir, false);
+            invalidate(dirPath, true);
+        }
 
         ls();
     }
-    private void rmdirInternal(Path dirPath) throws IOException {
-        rmAll(dirPath);
-        Files.delete(dirPath);
-    }
-    private void rmAll(Path path) throws IOException {
-        Files.walkFileTree(path, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (Files.isDirectory(file)) rmdirInternal(file.getFileName());
-                else Files.delete(file);
-                return FileVisitResult.CONTINUE;
-            }
-        });
+    // Every file below dir, and its directories too if asked, while the client is told how far it got.
+    // A report that cannot be sent means the client is gone, it cancels the deletion.
+    private void delete(Path dir, boolean directories) throws IOException {
+        var pool = transceiver.getTaskPool();
+        var deleter = pool != null ? new TreeDeleter(pool) : new TreeDeleter();
+        deleter.setProgress((files, dirs) -> transceiver.progress(
+                String.format("Deleted %d files and %d directories...", files, dirs)), PROGRESS_INTERVAL);
+        if (directories) deleter.delete(dir);
+        else deleter.deleteFiles(dir);
+    }
+    // Changes of the session show up in its next listing even before the watch reports them
+    private void invalidate(Path dir, boolean tree) {
+        var listings = transceiver.getListingCache();
+        if (listings == null) return;
+        if (tree) listings.invalidateTree(dir);
+        else listings.invalidate(dir);
     }
 
     @Handler
@@ -201,6 +256,16 @@ public class CommandHandler {
         transceiver.close();
     }
 
+    @Handler
+    private void stats() throws IOException {
+        var metrics = transceiver.getMetrics();
+        if (metrics == null) {
+            transceiver.send("Statistics are not available.");
+            return;
+        }
+        transceiver.send(metrics.snapshot().format() + transceiver.getTuning().format());
+    }
+
     @Handler
     protected void help() throws IOException {
         String resp = String.format(
@@ -210,12 +275,20 @@ public class CommandHandler {
                         "%-20s\t- %s%n" +
                         "%-20s\t- %s%n" +
                         "%-20s\t- %s%n" +
+                        "%-20s\t- %s%n" +
+                        "%-20s\t- %s%n" +
+                        "%-20s\t- %s%n" +
                         "%-20s\t- %s%n",
                 "ls", "List all file in current directory.",
+                "ls [-l] [-d|-f] [-s name|size|time] [-r] [-n pageSize] [glob]",
+                "List one page at a time: -l details, -d directories or -f files only, -s sort key, " +
+                        "-r reverse, -n entries per page (" + DirectoryListing.DEFAULT_PAGE + " by default), glob filters names.",
+                "ls -c <cursor>", "Show the next page of a listing, the cursor ends the previous page.",
                 "cd <target>", "Move to target directory.",
                 "rm <target>", "Delete target file.",
                 "rmdir <target>", "Delete target directory.",
                 "up <path to target>", "Upload a file or directory to the server if file sharing is enabled.",
+                "stats", "Display command latency and transfer statistics of the server.",
                 "dc", "Disconnect from server.",
                 "help", "Display this help message"
         );
@@ -0,0 +1,654 @@
+package kir.util.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable, ordered byte stream over UDP, so that UDP sessions speak the same framed protocol
+ * as TCP ones. Written bytes are cut into numbered segments sent within a sliding window. The
+ * receiver keeps segments arriving past a gap and acknowledges cumulatively, together with a
+ * bitmap of the 64 segments following the gap, so the sender only resends what is missing.
+ * The window is bounded by the room the receiver advertises and by a congestion window that
+ * grows with every acknowledgement and halves on loss, as TCP Reno does.
+ * <p>
+ * Each packet is {@code [byte type][int session][int seq][int ack][long sack][int window][payload]},
+ * the session tells apart the streams sharing a server socket. A thread per stream receives
+ * the packets from its {@link Transport} and runs the retransmission timer.
+ * <p>
+ * Packets live in direct buffers of the {@link BufferPool}: a segment is staged behind the
+ * room of its header and sent from the same buffer until acknowledged, a received one is read
+ * from the buffer it arrived in, so a stream allocates nothing per packet once warmed up.
+ */
+final class DatagramStream implements Closeable {
+
+    private static final byte DATA = 1;
+    private static final byte ACK = 2;
+    private static final byte FIN = 3;
+    // Asks for an acknowledgement while the receiver advertises no room
+    private static final byte PROBE = 4;
+
+    static final int HEADER_BYTES = 1 + 4 * Integer.BYTES + Long.BYTES;
+    static final int MAX_DATAGRAM = 65507;
+    static final int MIN_DATAGRAM = 512;
+    // Segments held by the receiver, which also bounds the send window
+    private static final int WINDOW = 512;
+    private static final int INITIAL_CWND = 10;
+    // Requested socket buffers, the system may grant less. Room for a full window, a burst
+    // overflowing the socket buffer is lost as a whole
+    static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+    // Segments acknowledged past a missing one before it is taken as lost
+    private static final int DUP_THRESHOLD = 3;
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(5);
+    private static final int IDLE_TICK_MILLIS = 100;
+    // A peer silent for this long while data is outstanding, or since the stream opened, is gone
+    private static final long PEER_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    // How long close waits for the FIN to be acknowledged
+    private static final long LINGER = TimeUnit.SECONDS.toNanos(3);
+    // Placeholder of the FIN in the receive window
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Transport transport;
+    private final int session;
+    private final int packetSize;
+    private int mss;
+    private final ByteBuffer control;
+    private final InputStream in;
+    private final OutputStream out;
+
+    // Sender
+    private final ArrayDeque<Segment> inFlight;
+    private final ArrayDeque<Segment> spare;
+    private ByteBuffer staged;
+    private int stagedCount;
+    private int nextSeq;
+    private int peerAck;
+    private int peerWindow;
+    private int pipe;        // Segments in flight neither acknowledged nor lost
+    private int lost;        // Segments waiting to be resent
+    private double cwnd;
+    private double ssthresh;
+    private boolean recovering;   // The window was cut for losses up to recoverPoint
+    private int recoverPoint;
+    private long srtt;
+    private long rttvar;
+    private long rto;
+    private int writers;
+    private long lastProbe;
+    private long delivered;  // Latest send time of a segment known to have arrived
+    private long transmitted;
+    private long losses;
+
+    // Receiver
+    private final ByteBuffer[] window;
+    private final ArrayDeque<ByteBuffer> ready;
+    private int rcvNext;
+    private int advertised;
+    private boolean eof;
+
+    private long lastHeard;
+    private boolean heard;
+    private IOException failure;
+    private boolean closed;
+
+    private DatagramStream(Transport transport, int session, int datagramSize) {
+        this.transport = transport;
+        this.session = session;
+        this.packetSize = packetSize(datagramSize);
+        this.mss = packetSize - HEADER_BYTES;
+        this.control = BufferPool.acquireDirect(HEADER_BYTES);
+        this.in = new Input();
+        this.out = new Output();
+        this.inFlight = new ArrayDeque<>();
+        this.spare = new ArrayDeque<>();
+        this.staged = BufferPool.acquireDirect(packetSize);
+        this.peerWindow = WINDOW;
+        this.cwnd = INITIAL_CWND;
+        this.ssthresh = WINDOW;
+        this.srtt = -1;
+        this.rto = INITIAL_RTO;
+        this.window = new ByteBuffer[WINDOW];
+        this.ready = new ArrayDeque<>();
+        this.advertised = WINDOW;
+        this.lastHeard = System.nanoTime();
+    }
+
+    /**
+     * Opens the stream of {@code session} over {@code transport}. Both sides must use the same
+     * session and {@code datagramSize}, the largest packet sent including the header.
+     */
+    static DatagramStream open(Transport transport, int session, int datagramSize) {
+        var stream = new DatagramStream(transport, session, datagramSize);
+        var t = new Thread(stream::run, "datagram-stream-" + Integer.toHexString(session));
+        t.setDaemon(true);
+        t.start();
+        return stream;
+    }
+
+    /**
+     * @return the largest packet of a stream opened with {@code datagramSize}, header included.
+     */
+    static int packetSize(int datagramSize) {
+        return Math.max(MIN_DATAGRAM, Math.min(datagramSize, MAX_DATAGRAM));
+    }
+
+    /**
+     * Sends segments of at most {@code datagramSize} bytes from now on, up to the size the
+     * stream was opened with, which is what the peer receives at most.
+     */
+    synchronized void setDatagramSize(int datagramSize) throws IOException {
+        mss = Math.max(MIN_DATAGRAM, Math.min(datagramSize, packetSize)) - HEADER_BYTES;
+        if (stagedCount >= mss) flush();
+    }
+
+    /**
+     * @return the smoothed round trip time in nanoseconds, {@code -1} until measured.
+     */
+    synchronized long getRtt() {
+        return srtt;
+    }
+
+    /**
+     * @return segments sent so far, resent ones included.
+     */
+    synchronized long getTransmitted() {
+        return transmitted;
+    }
+
+    /**
+     * @return segments found lost so far, by a timeout or by later segments overtaking them.
+     */
+    synchronized long getLosses() {
+        return losses;
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                int timeout;
+                synchronized (this) {
+                    if (closed) return;
+                    timeout = nextTimeout();
+                }
+                var received = transport.receive(timeout);
+                synchronized (this) {
+                    if (received != null && !handle(received)) BufferPool.release(received);
+                    timers();
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!closed && failure == null) failure = e;
+                notifyAll();
+            }
+        } finally {
+            synchronized (this) {
+                releasePackets();
+            }
+        }
+    }
+
+    // Nothing is sent or received past the end of the thread, what is left to read stays readable
+    private void releasePackets() {
+        BufferPool.release(control);
+        BufferPool.release(staged);
+        Segment s;
+        while ((s = inFlight.pollFirst()) != null) BufferPool.release(s.packet);
+        for (var i = 0; i < WINDOW; i++) {
+            if (window[i] != null && window[i] != END) BufferPool.release(window[i]);
+            window[i] = null;
+        }
+    }
+
+    private int nextTimeout() {
+        var head = inFlight.peekFirst();
+        if (head == null) return IDLE_TICK_MILLIS;
+        var due = TimeUnit.NANOSECONDS.toMillis(head.sentAt + rto - System.nanoTime());
+        return (int) Math.max(1, Math.min(IDLE_TICK_MILLIS, due));
+    }
+
+    // Returns whether the packet was kept, its buffer is then released once read
+    private boolean handle(ByteBuffer p) throws IOException {
+        if (p.remaining() < HEADER_BYTES) return false;
+        var type = p.get();
+        if (p.getInt() != session) return false;   // Left over from an earlier session of the same peer
+        var seq = p.getInt();
+        var ack = p.getInt();
+        var sack = p.getLong();
+        var win = p.getInt();
+        lastHeard = System.nanoTime();
+        heard = true;
+
+        acknowledged(ack, sack, win);
+        var kept = false;
+        switch (type) {
+            case DATA, FIN -> {
+                kept = received(seq, type == FIN, p);
+                sendAck();
+            }
+            case PROBE -> sendAck();
+            default -> {
+            }
+        }
+        return kept;
+    }
+
+    // Sender side of an acknowledgement
+    private void acknowledged(int ack, long sack, int win) throws IOException {
+        if (ack - peerAck < 0 || ack - nextSeq > 0) return;   // Stale or bogus
+        var now = System.nanoTime();
+        var acked = 0;
+        var gap = false;
+        var lastSacked = false;
+        var lastSentAt = 0L;
+        while (!inFlight.isEmpty() && inFlight.peekFirst().seq - ack < 0) {
+            var s = inFlight.pollFirst();
+            if (s.lost) lost--;
+            else if (!s.sacked) pipe--;
+            gap |= s.lost || s.retransmitted;
+            delivered = Math.max(delivered, s.sentAt);
+            lastSacked = s.sacked;
+            lastSentAt = s.sentAt;
+            acked++;
+            recycle(s);
+        }
+        // Only a segment acknowledged as it arrived measures the round trip, not one held behind a gap
+        var sampled = false;
+        if (acked > 0 && !gap && !lastSacked) {
+            sample(now - lastSentAt);
+            sampled = true;
+        }
+        if (ack != peerAck) {
+            peerAck = ack;
+            if (srtt >= 0) rto = clampRto(srtt + 4 * rttvar);   // Ends a backoff
+        }
+        peerWindow = win;
+        if (recovering && peerAck - recoverPoint >= 0) recovering = false;
+        if (acked > 0) cwnd = Math.min(WINDOW, cwnd < ssthresh ? cwnd + acked : cwnd + acked / cwnd);
+
+        // Mark what the receiver holds past the gap, then whatever enough later segments overtook.
+        // A resent segment is lost again once a segment sent well after it got through.
+        var sackedAfter = 0;
+        var reordering = srtt < 0 ? MIN_RTO : srtt / 2 + TimeUnit.MILLISECONDS.toNanos(1);
+        var it = inFlight.descendingIterator();
+        while (it.hasNext()) {
+            var s = it.next();
+            var bit = s.seq - ack - 1;
+            if (!s.sacked && bit >= 0 && bit < Long.SIZE && (sack >>> bit & 1) != 0) {
+                if (s.lost) lost--;
+                else pipe--;
+                s.sacked = true;
+                s.lost = false;
+                delivered = Math.max(delivered, s.sentAt);
+                if (!sampled && !s.retransmitted) {
+                    sample(now - s.sentAt);
+                    sampled = true;
+                }
+            }
+            if (s.sacked) {
+                sackedAfter++;
+            } else if (!s.lost && (s.retransmitted ? delivered - s.sentAt > reordering : sackedAfter >= DUP_THRESHOLD)) {
+                markLost(s);
+                enterRecovery();
+            }
+        }
+        resend();
+    }
+
+    private void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = clampRto(srtt + 4 * rttvar);
+    }
+
+    private static long clampRto(long rto) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    private void markLost(Segment s) {
+        s.lost = true;
+        pipe--;
+        lost++;
+        losses++;
+    }
+
+    private void enterRecovery() {
+        if (recovering) return;
+        recovering = true;
+        recoverPoint = nextSeq;
+        ssthresh = Math.max(cwnd / 2, 2);
+        cwnd = ssthresh;
+    }
+
+    // Lost segments go first, new data waits until they are all resent
+    private void resend() throws IOException {
+        if (lost == 0) return;
+        for (var s : inFlight) {
+            if (pipe >= cwnd) return;
+            if (!s.lost) continue;
+            s.lost = false;
+            s.retransmitted = true;
+            lost--;
+            pipe++;
+            transmit(s);
+        }
+    }
+
+    private void timers() throws IOException {
+        var now = System.nanoTime();
+        if ((!inFlight.isEmpty() || !heard) && now - lastHeard > PEER_TIMEOUT) {
+            failure = new IOException("Peer of session " + Integer.toHexString(session) + " is not responding");
+            closed = true;
+            transport.close();
+            return;
+        }
+        // The oldest segment was last sent a timeout ago, whether or not it is queued for resending
+        var head = inFlight.peekFirst();
+        if (head != null && now - head.sentAt >= rto) {
+            // Timeout: everything outstanding is resent from a window of one
+            for (var s : inFlight) if (!s.sacked && !s.lost) markLost(s);
+            ssthresh = Math.max(cwnd / 2, 2);
+            cwnd = 1;
+            recovering = true;
+            recoverPoint = nextSeq;
+            rto = Math.min(MAX_RTO, rto * 2);
+            resend();
+        } else if (writers > 0 && inFlight.isEmpty() && now - lastProbe >= rto) {
+            lastProbe = now;
+            sendControl(PROBE);
+        }
+    }
+
+    // Receiver side of a segment, the packet is kept positioned at its payload
+    private boolean received(int seq, boolean fin, ByteBuffer packet) {
+        var offset = seq - rcvNext;
+        if (offset < 0 || offset >= WINDOW - ready.size()) return false;   // Duplicate, or no room left
+        var slot = Math.floorMod(seq, WINDOW);
+        if (window[slot] != null) return false;
+        window[slot] = fin ? END : packet;
+        ByteBuffer next;
+        while ((next = window[Math.floorMod(rcvNext, WINDOW)]) != null) {
+            window[Math.floorMod(rcvNext, WINDOW)] = null;
+            rcvNext++;
+            if (next == END) eof = true;
+            else if (next.hasRemaining()) ready.addLast(next);
+            else BufferPool.release(next);
+        }
+        return !fin;
+    }
+
+    private long sackBits() {
+        var bits = 0L;
+        for (var i = 0; i < Long.SIZE; i++) if (window[Math.floorMod(rcvNext + 1 + i, WINDOW)] != null) bits |= 1L << i;
+        return bits;
+    }
+
+    private void sendAck() throws IOException {
+        sendControl(ACK);
+    }
+
+    private void sendControl(byte type) throws IOException {
+        header(control, type, nextSeq);
+        transport.send(control.limit(HEADER_BYTES).position(0));
+    }
+
+    private void transmit(Segment s) throws IOException {
+        header(s.packet, s.fin ? FIN : DATA, s.seq);
+        s.sentAt = System.nanoTime();
+        transmitted++;
+        transport.send(s.packet.limit(s.length).position(0));
+    }
+
+    // Every packet carries the acknowledgement of what was received so far
+    private void header(ByteBuffer packet, byte type, int seq) {
+        advertised = WINDOW - ready.size();
+        packet.put(0, type)
+                .putInt(1, session)
+                .putInt(5, seq)
+                .putInt(9, rcvNext)
+                .putLong(13, sackBits())
+                .putInt(21, advertised);
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    // Takes over the packet, its payload already staged behind the room of the header
+    private void send(ByteBuffer packet, int length, boolean fin) throws IOException {
+        writers++;
+        try {
+            while (lost > 0 || pipe >= cwnd || nextSeq - (peerAck + peerWindow) >= 0) {
+                checkOpen();
+                wait();
+            }
+            checkOpen();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the send window");
+        } finally {
+            writers--;
+        }
+        var s = spare.isEmpty() ? new Segment() : spare.pollFirst();
+        s.seq = nextSeq++;
+        s.packet = packet;
+        s.length = length;
+        s.fin = fin;
+        inFlight.addLast(s);
+        pipe++;
+        transmit(s);
+    }
+
+    private void recycle(Segment s) {
+        BufferPool.release(s.packet);
+        s.packet = null;
+        s.sentAt = 0;
+        s.sacked = false;
+        s.lost = false;
+        s.retransmitted = false;
+        spare.addLast(s);
+    }
+
+    private synchronized void write(int b) throws IOException {
+        checkOpen();
+        staged.put(HEADER_BYTES + stagedCount++, (byte) b);
+        if (stagedCount >= mss) flush();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            var n = Math.min(len, mss - stagedCount);
+            staged.put(HEADER_BYTES + stagedCount, b, off, n);
+            stagedCount += n;
+            off += n;
+            len -= n;
+            if (stagedCount >= mss) flush();
+        }
+    }
+
+    // The staged packet leaves as it is, writing goes on in a fresh one
+    private synchronized void flush() throws IOException {
+        if (stagedCount == 0) return;
+        checkOpen();
+        var packet = staged;
+        var length = HEADER_BYTES + stagedCount;
+        staged = BufferPool.acquireDirect(packetSize);
+        stagedCount = 0;
+        send(packet, length, false);
+    }
+
+    private synchronized int read() throws IOException {
+        if (!awaitReady()) return -1;
+        var head = ready.peekFirst();
+        var b = head.get() & 0xff;
+        consumed(head);
+        return b;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!awaitReady()) return -1;
+        var head = ready.peekFirst();
+        var n = Math.min(len, head.remaining());
+        head.get(b, off, n);
+        consumed(head);
+        return n;
+    }
+
+    // Returns false at the end of the stream
+    private boolean awaitReady() throws IOException {
+        try {
+            while (ready.isEmpty()) {
+                if (eof) return false;
+                checkOpen();
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+        return true;
+    }
+
+    private void consumed(ByteBuffer head) throws IOException {
+        if (head.hasRemaining()) return;
+        ready.pollFirst();
+        BufferPool.release(head);
+        // The sender may be stalled on a window that has since reopened
+        if (advertised < WINDOW / 4 && WINDOW - ready.size() >= WINDOW / 2 && failure == null && !closed) sendAck();
+    }
+
+    private synchronized int available() {
+        var n = 0;
+        for (var data : ready) n += data.remaining();
+        return n;
+    }
+
+    /**
+     * Sends what is left and a FIN, then waits for the peer to acknowledge them.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            try {
+                if (failure == null) {
+                    flush();
+                    send(BufferPool.acquireDirect(HEADER_BYTES), HEADER_BYTES, true);
+                }
+                // Data is delivered unless the peer is gone, the FIN alone is only waited for a while:
+                // once the peer closed too, nobody may be left to acknowledge it
+                while (failure == null && inFlight.size() > 1) wait();
+                var deadline = System.nanoTime() + LINGER;
+                long remaining;
+                while (failure == null && !inFlight.isEmpty() && !eof && (remaining = deadline - System.nanoTime()) > 0)
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (IOException ignored) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closed = true;
+            notifyAll();
+        }
+        transport.close();
+    }
+
+    /**
+     * Carries the packets of a stream to and from its peer.
+     */
+    interface Transport {
+
+        void send(ByteBuffer packet) throws IOException;
+
+        /**
+         * @return the next packet of the peer, or {@code null} if none arrived within {@code timeoutMillis}.
+         * The stream owns the buffer from then on and hands it back to the {@link BufferPool}.
+         */
+        ByteBuffer receive(int timeoutMillis) throws IOException;
+
+        boolean isClosed();
+
+        void close();
+
+    }
+
+    // Acknowledged segments are reused for later ones
+    private static final class Segment {
+        private int seq;
+        private ByteBuffer packet;
+        private int length;
+        private boolean fin;
+        private long sentAt;
+        private boolean sacked;
+        private boolean lost;
+        private boolean retransmitted;
+    }
+
+    private final class Input extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return DatagramStream.this.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return DatagramStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return DatagramStream.this.available();
+        }
+
+        @Override
+        public void close() {
+            DatagramStream.this.close();
+        }
+    }
+
+    private final class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            DatagramStream.this.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            DatagramStream.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            DatagramStream.this.flush();
+        }
+
+        @Override
+        public void close() {
+            DatagramStream.this.close();
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+package kir.util.net;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * rsync style delta encoding. The receiver describes the file it already has as a list of
+ * block checksums, a cheap rolling one and an MD5. The sender slides over its own file and
+ * only ships the bytes that match no block, everything else becomes a block reference.
+ */
+final class DeltaTransfer {
+
+    private static final int MIN_BLOCK = 2 * 1024;
+    private static final int MAX_BLOCK = 128 * 1024;
+    private static final int DIGEST_LENGTH = 16;
+    // Literal runs are flushed once they reach this size
+    private static final int LITERAL_MAX = 64 * 1024;
+
+    private static final int OP_LITERAL = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_END = 2;
+
+    private DeltaTransfer() {
+    }
+
+    /**
+     * Block checksums of the file held by the receiver.
+     */
+    static final class Signature {
+        private final int blockSize;
+        private final int[] weak;
+        private final byte[][] strong;
+
+        private Signature(int blockSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        int getBlockCount() {
+            return weak.length;
+        }
+
+        static Signature of(Path basis) throws IOException {
+            var length = Files.exists(basis) ? Files.size(basis) : 0;
+            var blockSize = blockSize(length);
+            var count = (int) Math.min(length / blockSize, Integer.MAX_VALUE);
+            var weak = new int[count];
+            var strong = new byte[count][];
+            if (count == 0) return new Signature(blockSize, weak, strong);
+
+            var md5 = md5();
+            var block = new byte[blockSize];
+            try (var in = new BufferedInputStream(Files.newInputStream(basis), MAX_BLOCK)) {
+                for (var i = 0; i < count; i++) {
+                    in.readNBytes(block, 0, blockSize);
+                    weak[i] = Rolling.of(block, 0, blockSize).value();
+                    strong[i] = md5.digest(block);
+                }
+            }
+            return new Signature(blockSize, weak, strong);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(blockSize);
+            out.writeInt(weak.length);
+            for (var i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong[i]);
+            }
+        }
+
+        static Signature read(DataInputStream in) throws IOException {
+            var blockSize = in.readInt();
+            var count = in.readInt();
+            if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || count < 0)
+                throw new IOException("Invalid delta signature");
+            var weak = new int[count];
+            var strong = new byte[count][];
+            for (var i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                strong[i] = in.readNBytes(DIGEST_LENGTH);
+                if (strong[i].length != DIGEST_LENGTH) throw new EOFException();
+            }
+            return new Signature(blockSize, weak, strong);
+        }
+
+        private static int blockSize(long length) {
+            // About the square root of the length, as rsync does
+            var size = Integer.highestOneBit((int) Math.min(Math.sqrt(length), MAX_BLOCK));
+            return Math.max(MIN_BLOCK, size);
+        }
+    }
+
+    /**
+     * Writes the operations rebuilding {@code file} from the basis described by {@code signature},
+     * followed by the MD5 of the whole file.
+     *
+     * @return the number of literal bytes written.
+     */
+    static long encode(Path file, Signature signature, OutputStream os) throws IOException {
+        var out = new DataOutputStream(os);
+        var blockSize = signature.blockSize;
+        var index = new HashMap<Integer, int[]>();
+        for (var i = 0; i < signature.weak.length; i++) index.merge(signature.weak[i], new int[]{i}, DeltaTransfer::concat);
+
+        var md5 = md5();
+        var encoder = new Encoder(out, blockSize);
+        try (var in = Files.newInputStream(file)) {
+            var window = new Window(in, LITERAL_MAX + 2 * blockSize + MAX_BLOCK, md5);
+            Rolling rolling = null;
+            while (window.ensure(window.pos + blockSize) - window.pos >= blockSize) {
+                if (rolling == null) rolling = Rolling.of(window.buf, window.pos, blockSize);
+                var match = index.isEmpty() ? -1 : find(index.get(rolling.value()), signature, window.buf, window.pos, blockSize);
+                if (match >= 0) {
+                    encoder.literal(window.buf, window.lit, window.pos - window.lit);
+                    encoder.copy(match);
+                    window.pos += blockSize;
+                    window.lit = window.pos;
+                    rolling = null;
+                    continue;
+                }
+                if (window.ensure(window.pos + blockSize + 1) - window.pos <= blockSize) break;
+                rolling.roll(window.buf[window.pos], window.buf[window.pos + blockSize], blockSize);
+                window.pos++;
+                if (window.pos - window.lit >= LITERAL_MAX) {
+                    encoder.literal(window.buf, window.lit, window.pos - window.lit);
+                    window.lit = window.pos;
+                }
+            }
+            // Whatever is left is shorter than a block and cannot match
+            window.ensure(Integer.MAX_VALUE);
+            encoder.literal(window.buf, window.lit, window.filled - window.lit);
+        }
+        encoder.flushCopy();
+        out.writeByte(OP_END);
+        out.write(md5.digest());
+        out.flush();
+        return encoder.literalBytes;
+    }
+
+    /**
+     * Rebuilds the file described by the operations into {@code target}, reading block
+     * references from {@code basis}.
+     *
+     * @return {@code false} if the result does not match the checksum sent by the encoder.
+     */
+    static boolean apply(Path basis, Signature signature, InputStream is, Path target) throws IOException {
+        var in = new DataInputStream(is);
+        var md5 = md5();
+        var blockSize = signature.blockSize;
+        var buffer = ByteBuffer.allocate(Math.max(blockSize, LITERAL_MAX));
+        try (var src = signature.getBlockCount() > 0 ? FileChannel.open(basis, StandardOpenOption.READ) : null;
+             var dst = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (true) {
+                var op = in.readUnsignedByte();
+                if (op == OP_END) break;
+                if (op == OP_LITERAL) {
+                    var len = in.readInt();
+                    if (len < 0 || len > buffer.capacity()) throw new IOException("Invalid delta literal");
+                    in.readFully(buffer.array(), 0, len);
+                    md5.update(buffer.array(), 0, len);
+                    buffer.clear().limit(len);
+                    while (buffer.hasRemaining()) dst.write(buffer);
+                } else if (op == OP_COPY) {
+                    var start = in.readInt();
+                    var count = in.readInt();
+                    if (src == null || start < 0 || count < 0 || start + (long) count > signature.getBlockCount())
+                        throw new IOException("Invalid delta block reference");
+                    for (var i = start; i < start + count; i++) {
+                        buffer.clear().limit(blockSize);
+                        var position = (long) i * blockSize;
+                        while (buffer.hasRemaining()) {
+                            if (src.read(buffer, position + buffer.position()) == -1) throw new EOFException("Basis file changed");
+                        }
+                        md5.update(buffer.array(), 0, blockSize);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) dst.write(buffer);
+                    }
+                } else throw new IOException("Invalid delta operation " + op);
+            }
+        }
+        var expected = in.readNBytes(DIGEST_LENGTH);
+        return Arrays.equals(expected, md5.digest());
+    }
+
+    private static int find(int[] candidates, Signature signature, byte[] buf, int pos, int len) {
+        if (candidates == null) return -1;
+        byte[] digest = null;
+        for (var candidate : candidates) {
+            if (digest == null) {
+                var md5 = md5();
+                md5.update(buf, pos, len);
+                digest = md5.digest();
+            }
+            if (Arrays.equals(digest, signature.strong[candidate])) return candidate;
+        }
+        return -1;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        var result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The rolling checksum of rsync, two 16 bit sums updated in constant time per byte.
+     */
+    private static final class Rolling {
+        private int a;
+        private int b;
+
+        static Rolling of(byte[] buf, int off, int len) {
+            var r = new Rolling();
+            for (var i = 0; i < len; i++) {
+                r.a += buf[off + i] & 0xff;
+                r.b += (len - i) * (buf[off + i] & 0xff);
+            }
+            r.a &= 0xffff;
+            r.b &= 0xffff;
+            return r;
+        }
+
+        void roll(byte out, byte in, int len) {
+            a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+            b = (b - len * (out & 0xff) + a) & 0xffff;
+        }
+
+        int value() {
+            return a | (b << 16);
+        }
+    }
+
+    /**
+     * Sliding view over the new file. Bytes before {@code lit} were already encoded and are
+     * dropped whenever more room is needed.
+     */
+    private static final class Window {
+        private final InputStream in;
+        private final MessageDigest md5;
+        private final byte[] buf;
+        private int filled;
+        private int pos;
+        private int lit;
+        private boolean eof;
+
+        Window(InputStream in, int capacity, MessageDigest md5) {
+            this.in = in;
+            this.md5 = md5;
+            this.buf = new byte[capacity];
+        }
+
+        // Makes bytes up to index {@code end} available if the file has them, returns the fill level
+        int ensure(int end) throws IOException {
+            if (end <= filled || eof) return filled;
+            if (lit > 0) {
+                System.arraycopy(buf, lit, buf, 0, filled - lit);
+                filled -= lit;
+                pos -= lit;
+                end = end == Integer.MAX_VALUE ? end : end - lit;
+                lit = 0;
+            }
+            while (filled < Math.min(end, buf.length)) {
+                var n = in.read(buf, filled, buf.length - filled);
+                if (n == -1) {
+                    eof = true;
+                    break;
+                }
+                md5.update(buf, filled, n);
+                filled += n;
+            }
+            return filled;
+        }
+    }
+
+    private static final class Encoder {
+        private final DataOutputStream out;
+        private final int blockSize;
+        private int copyStart = -1;
+        private int copyCount;
+        private long literalBytes;
+
+        Encoder(DataOutputStream out, int blockSize) {
+            this.out = out;
+            this.blockSize = blockSize;
+        }
+
+        void literal(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) return;
+            flushCopy();
+            for (var end = off + len; off < end; off += LITERAL_MAX) {
+                var n = Math.min(LITERAL_MAX, end - off);
+                out.writeByte(OP_LITERAL);
+                out.writeInt(n);
+                out.write(buf, off, n);
+            }
+            literalBytes += len;
+        }
+
+        // Consecutive blocks are sent as a single reference
+        void copy(int block) throws IOException {
+            if (copyStart >= 0 && block == copyStart + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+
+        void flushCopy() throws IOException {
+            if (copyStart < 0) return;
+            out.writeByte(OP_COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            copyStart = -1;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package kir.util.net;
+
+import kir.util.ConsoleColors;
+import kir.util.Printer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Listing of a directory answered one page at a time, for {@code ls} with options:
+ * {@code ls [-l] [-d|-f] [-s name|size|time] [-r] [-n pageSize] [glob]}. Unsorted pages are
+ * taken from the directory as it is enumerated, the first one is sent as soon as it is full
+ * and the directory stays open until the last one. Sorting needs every entry first, those are
+ * kept as names and attributes rather than rendered lines. A page with more after it ends with
+ * a line {@link #MORE} followed by the cursor that continues it.
+ */
+final class DirectoryListing implements Closeable {
+
+    static final String MORE = "-- more: ls -c ";
+    static final int DEFAULT_PAGE = 1000;
+    private static final int MAX_PAGE = 100_000;
+    private static final DateTimeFormatter MTIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    private final DirectoryStream<Path> stream;
+    private final Iterator<Path> paths;
+    private final boolean details;
+    private final Boolean directories;   // null keeps both, otherwise only directories or only files
+    private final int pageSize;
+    private List<Entry> sorted;   // Only set when sorting, the entries not sent yet are from index on
+    private int index;
+    private Entry next;
+
+    private DirectoryListing(Path dir, String glob, boolean details, Boolean directories, int pageSize) throws IOException {
+        this.stream = glob == null ? Files.newDirectoryStream(dir) : Files.newDirectoryStream(dir, glob);
+        this.paths = stream.iterator();
+        this.details = details;
+        this.directories = directories;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Parses the options of {@code ls} and opens {@code dir}.
+     * @throws IllegalArgumentException with a message for the client if an option is invalid.
+     */
+    static DirectoryListing open(Path dir, String[] args) throws IOException {
+        var details = false;
+        var reverse = false;
+        Boolean directories = null;
+        Comparator<Entry> order = null;
+        var pageSize = DEFAULT_PAGE;
+        String glob = null;
+        for (var i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-l" -> details = true;
+                case "-r" -> reverse = true;
+                case "-d" -> directories = true;
+                case "-f" -> directories = false;
+                case "-s" -> order = order(value(args, ++i, "-s"));
+                case "-n" -> pageSize = pageSize(value(args, ++i, "-n"));
+                default -> {
+                    if (args[i].startsWith("-") || glob != null) throw new IllegalArgumentException("Invalid option " + args[i] + ".");
+                    glob = args[i];
+                }
+            }
+        }
+        if (reverse && order == null) order = Comparator.comparing(Entry::name);
+        if (reverse) order = order.reversed();
+
+        var listing = new DirectoryListing(dir, glob, details, directories, pageSize);
+        if (order != null) {
+            try {
+                listing.sort(order);
+            } catch (IOException | RuntimeException e) {
+                listing.close();
+                throw e;
+            }
+        }
+        return listing;
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) throw new IllegalArgumentException("Option " + option + " requires a value.");
+        return args[i];
+    }
+
+    private static Comparator<Entry> order(String key) {
+        return switch (key.toLowerCase(Locale.ROOT)) {
+            case "name" -> Comparator.comparing(Entry::name);
+            case "size" -> Comparator.comparingLong(Entry::size).thenComparing(Entry::name);
+            case "time" -> Comparator.comparingLong(Entry::mtime).thenComparing(Entry::name);
+            default -> throw new IllegalArgumentException("Invalid sort key " + key + ", expected name, size or time.");
+        };
+    }
+
+    private static int pageSize(String value) {
+        try {
+            var size = Integer.parseInt(value);
+            if (size > 0 && size <= MAX_PAGE) return size;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE + ".");
+    }
+
+    private void sort(Comparator<Entry> order) throws IOException {
+        var entries = new ArrayList<Entry>();
+        for (var entry = read(); entry != null; entry = read()) entries.add(entry);
+        stream.close();
+        entries.sort(order);
+        sorted = entries;
+    }
+
+    /**
+     * Renders the next page, {@link #hasMore()} tells whether the cursor must be kept for another.
+     */
+    String page() throws IOException {
+        var sb = new StringBuilder();
+        for (var n = 0; n < pageSize; n++) {
+            var entry = take();
+            if (entry == null) break;
+            if (n > 0) sb.append('\n');
+            render(sb, entry);
+        }
+        return sb.toString();
+    }
+
+    boolean hasMore() throws IOException {
+        if (sorted != null) return index < sorted.size();
+        if (next == null) next = read();
+        return next != null;
+    }
+
+    private Entry take() throws IOException {
+        if (sorted != null) return index < sorted.size() ? sorted.get(index++) : null;
+        var entry = next != null ? next : read();
+        next = null;
+        return entry;
+    }
+
+    // One stat per entry gives the type, size and modification time together
+    private Entry read() throws IOException {
+        try {
+            while (paths.hasNext()) {
+                var path = paths.next();
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;   // Deleted since it was enumerated
+                }
+                if (directories != null && directories != attrs.isDirectory()) continue;
+                return new Entry(path.getFileName().toString(), attrs.isDirectory(), attrs.size(),
+                        attrs.lastModifiedTime().toMillis());
+            }
+            return null;
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void render(StringBuilder sb, Entry entry) {
+        if (details) {
+            sb.append(entry.dir ? 'd' : '-').append(' ')
+                    .append(String.format("%12d", entry.size)).append(' ')
+                    .append(MTIME.format(Instant.ofEpochMilli(entry.mtime))).append(' ');
+        }
+        if (entry.dir) sb.append(Printer.formatc("%s", ConsoleColors.BLUE_BRIGHT, entry.name));
+        else sb.append(entry.name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+        sorted = null;
+    }
+
+    private record Entry(String name, boolean dir, long size, long mtime) {
+    }
+
+}
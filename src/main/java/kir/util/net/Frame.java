@@ -0,0 +1,125 @@
+package kir.util.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Unit of the TCP protocol: {@code [byte type][int length][payload]}. Messages, file headers,
+ * transfer negotiation and file bodies all travel as frames. The header has a fixed size so a
+ * frame is read without looking past its end, the socket streams stay unbuffered.
+ */
+record Frame(byte type, int length) {
+
+    // Text of NetTransceiver.send, UTF-8
+    static final byte MESSAGE = 1;
+    // Flags, name and length of a file
+    static final byte HEADER = 2;
+    // Fields exchanged while a transfer is set up
+    static final byte CONTROL = 3;
+    // Piece of a body, may be of any length up to the int limit
+    static final byte DATA = 4;
+    // Terminates a body
+    static final byte END = 5;
+    // Terminates a body the sender could not complete, the payload is the reason in UTF-8
+    static final byte ABORT = 6;
+
+    static final int HEADER_BYTES = 1 + Integer.BYTES;
+    // Frames other than DATA are read in memory, a corrupt length must not exhaust it
+    private static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+    // Payloads up to this size are copied behind their header to leave in a single write
+    private static final int COPY_MAX = 64 * 1024;
+
+    /**
+     * Reads a header into {@code header}, a scratch array of {@link #HEADER_BYTES} the caller
+     * reuses from one frame to the next.
+     */
+    static Frame read(InputStream in, byte[] header) throws IOException {
+        if (in.readNBytes(header, 0, HEADER_BYTES) < HEADER_BYTES) throw new EOFException();
+        return of(header[0], (header[1] & 0xFF) << 24 | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 8 | header[4] & 0xFF);
+    }
+
+    static Frame read(ReadableByteChannel ch) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining()) if (ch.read(header) == -1) throw new EOFException();
+        return of(header.flip());
+    }
+
+    private static Frame of(ByteBuffer header) throws IOException {
+        return of(header.get(), header.getInt());
+    }
+
+    private static Frame of(byte type, int length) throws IOException {
+        var frame = new Frame(type, length);
+        if (frame.type < MESSAGE || frame.type > ABORT || frame.length < 0) throw new IOException("Invalid frame " + frame);
+        return frame;
+    }
+
+    static ByteBuffer header(byte type, int length) {
+        return ByteBuffer.allocate(HEADER_BYTES).put(type).putInt(length).flip();
+    }
+
+    /**
+     * Writes the header of a frame into the first {@link #HEADER_BYTES} of {@code buf}, so a
+     * payload staged right after it leaves in a single write.
+     */
+    static void put(byte[] buf, byte type, int length) {
+        buf[0] = type;
+        buf[1] = (byte) (length >>> 24);
+        buf[2] = (byte) (length >>> 16);
+        buf[3] = (byte) (length >>> 8);
+        buf[4] = (byte) length;
+    }
+
+    /**
+     * Writes a whole frame. Small payloads are copied behind the header into a pooled buffer,
+     * large ones are written from {@code b} as they are.
+     */
+    static void write(OutputStream out, byte type, byte[] b, int off, int len) throws IOException {
+        if (len > COPY_MAX) {
+            var header = new byte[HEADER_BYTES];
+            put(header, type, len);
+            out.write(header);
+            out.write(b, off, len);
+            return;
+        }
+        var buf = BufferPool.acquire(HEADER_BYTES + len);
+        try {
+            put(buf, type, len);
+            System.arraycopy(b, off, buf, HEADER_BYTES, len);
+            out.write(buf, 0, HEADER_BYTES + len);
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    Frame expect(byte expected) throws IOException {
+        if (type != expected) throw new IOException("Expected frame of type " + expected + " but got " + this);
+        return this;
+    }
+
+    /**
+     * Reads the payload of this frame, which must not be a body.
+     */
+    ByteBuffer payload(InputStream in) throws IOException {
+        checkPayload();
+        var payload = in.readNBytes(length);
+        if (payload.length < length) throw new EOFException();
+        return ByteBuffer.wrap(payload);
+    }
+
+    ByteBuffer payload(ReadableByteChannel ch) throws IOException {
+        checkPayload();
+        var payload = ByteBuffer.allocate(length);
+        while (payload.hasRemaining()) if (ch.read(payload) == -1) throw new EOFException();
+        return payload.flip();
+    }
+
+    void checkPayload() throws IOException {
+        if (type == DATA || length > MAX_PAYLOAD) throw new IOException("Frame payload too large: " + this);
+    }
+
+}
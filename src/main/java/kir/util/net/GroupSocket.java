@@ -0,0 +1,152 @@
+package kir.util.net;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+
+/**
+ * Socket of a multicast group. The sender side is bound to an ephemeral port, where receivers
+ * address their repair requests, and sends to the group. The receiver side is bound to the
+ * group port with {@code SO_REUSEADDR}, so several receivers may share a host or a JVM.
+ */
+public final class GroupSocket extends NetSocket<DatagramChannel> {
+
+    // Administratively scoped group used when none is configured
+    static final String DEFAULT_GROUP = "239.255.77.77";
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    private final DatagramChannel channel;
+    private final NetworkInterface networkInterface;
+    private final boolean member;
+
+    private GroupSocket(DatagramChannel channel, NetworkInterface nif, InetAddress group, int port, int bufSize, boolean member) {
+        this.channel = channel;
+        this.networkInterface = nif;
+        this.clientAddress = group;
+        this.clientPort = port;
+        this.buffer = bufSize;
+        this.member = member;
+    }
+
+    @Override
+    public InetAddress getClientAddress() {
+        return this.clientAddress;
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getClientPort() {
+        return this.clientPort;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.channel.socket().getLocalPort();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return this.buffer;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public DatagramChannel getSocket() {
+        return this.channel;
+    }
+
+    NetworkInterface getNetworkInterface() {
+        return networkInterface;
+    }
+
+    /**
+     * @return {@code true} if this socket joined the group and receives what is sent to it.
+     */
+    boolean isMember() {
+        return member;
+    }
+
+    public static GroupSocket sender(String group, int port, int bufSize) throws IOException {
+        return sender(group, port, bufSize, defaultInterface());
+    }
+
+    public static GroupSocket sender(String group, int port, int bufSize, NetworkInterface nif) throws IOException {
+        var address = groupAddress(group);
+        var channel = DatagramChannel.open(family(address));
+        try {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif)
+                    .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true)
+                    .setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER)
+                    .setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER)
+                    .bind(null);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new GroupSocket(channel, nif, address, port, bufSize, false);
+    }
+
+    public static GroupSocket join(String group, int port, int bufSize) throws IOException {
+        return join(group, port, bufSize, defaultInterface());
+    }
+
+    public static GroupSocket join(String group, int port, int bufSize, NetworkInterface nif) throws IOException {
+        var address = groupAddress(group);
+        var channel = DatagramChannel.open(family(address));
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                    .setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER)
+                    .bind(new InetSocketAddress(port))
+                    .join(address, nif);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new GroupSocket(channel, nif, address, port, bufSize, true);
+    }
+
+    private static InetAddress groupAddress(String group) throws IOException {
+        var address = InetAddress.getByName(group);
+        if (!address.isMulticastAddress()) throw new IllegalArgumentException(group + " is not a multicast address");
+        return address;
+    }
+
+    private static StandardProtocolFamily family(InetAddress group) {
+        return group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+    }
+
+    /**
+     * The first interface that is up and supports multicast, the loopback interface if there
+     * is none, which is enough for senders and receivers on the same host.
+     */
+    static NetworkInterface defaultInterface() throws SocketException {
+        NetworkInterface loopback = null;
+        for (var nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nif.isUp()) continue;
+            if (nif.isLoopback()) loopback = nif;
+            else if (nif.supportsMulticast() && !nif.isVirtual()) return nif;
+        }
+        if (loopback == null) throw new SocketException("No network interface available for multicast");
+        return loopback;
+    }
+
+}
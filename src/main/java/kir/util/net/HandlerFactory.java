@@ -0,0 +1,58 @@
+package kir.util.net;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Builds the {@link CommandHandler} of a new session.
+ */
+@FunctionalInterface
+public interface HandlerFactory {
+
+    CommandHandler create(NetTransceiver transceiver);
+
+    /**
+     * Factory for a handler class, resolved once instead of on every connection. A constructor
+     * taking a {@link NetTransceiver} is preferred, otherwise the parameterless one is used and
+     * the transceiver attached afterwards.
+     */
+    static HandlerFactory of(Class<? extends CommandHandler> clazz) {
+        if (clazz.getSuperclass() != CommandHandler.class) return CommandHandler::new;
+        var lookup = MethodHandles.lookup();
+        try {
+            var ctor = clazz.getDeclaredConstructor(NetTransceiver.class);
+            ctor.setAccessible(true);
+            var mh = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(CommandHandler.class, NetTransceiver.class));
+            return transceiver -> create(mh, transceiver);
+        } catch (NoSuchMethodException ignored) {
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            var ctor = clazz.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            var mh = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(CommandHandler.class));
+            return transceiver -> {
+                var handler = create(mh, null);
+                handler.attach(transceiver);
+                return handler;
+            };
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("No parameterless public constructor found");
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static CommandHandler create(MethodHandle ctor, NetTransceiver transceiver) {
+        try {
+            return transceiver == null ? (CommandHandler) ctor.invokeExact() : (CommandHandler) ctor.invokeExact(transceiver);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package kir.util.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of nanosecond durations in the spirit of HdrHistogram. Every power of
+ * two is split into 32 linear buckets, so any recorded value is reported within about 3% while
+ * the whole {@code long} range fits in a fixed array. Recording is lock free.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public Snapshot snapshot() {
+        var n = count.sum();
+        var total = sum.sum();
+        var copy = new long[BUCKETS];
+        for (var i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        var highest = max.get();
+        return new Snapshot(n, n == 0 ? 0 : total / n,
+                percentile(copy, 0.50, highest), percentile(copy, 0.90, highest),
+                percentile(copy, 0.99, highest), percentile(copy, 0.999, highest), highest);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        var shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    // Highest value that falls into the bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        var shift = bucket / SUB_COUNT - 1;
+        var lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    private static long percentile(long[] counts, double quantile, long max) {
+        long total = 0;
+        for (var c : counts) total += c;
+        if (total == 0) return 0;
+        var rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (var i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Point in time view of a histogram, every value is in nanoseconds.
+     */
+    public record Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+    }
+
+}
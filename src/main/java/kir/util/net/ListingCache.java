@@ -0,0 +1,173 @@
+package kir.util.net;
+
+import kir.util.ConsoleColors;
+import kir.util.Printer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendered answers of {@code ls}, shared by the sessions of a server and keyed by directory.
+ * A cached directory is watched, an entry is dropped as soon as a name is created or deleted
+ * in it. Events may be missed, on file systems that do not report them or when too many
+ * arrive at once, so entries also expire after a while. Sessions changing a directory
+ * invalidate it themselves rather than wait for the event.
+ */
+final class ListingCache implements AutoCloseable {
+
+    static final long DEFAULT_TTL = TimeUnit.SECONDS.toMillis(10);
+    // Directories kept, each one holds a watch of the system
+    private static final int MAX_ENTRIES = 4096;
+
+    private final long ttl;
+    private final LinkedHashMap<Path, Entry> entries;
+    private WatchService watcher;
+    private boolean watching;
+    private long invalidations;
+
+    ListingCache(long ttlMillis) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                if (size() <= MAX_ENTRIES) return false;
+                eldest.getValue().cancel();
+                return true;
+            }
+        };
+        this.invalidations = 0;
+    }
+
+    /**
+     * @return the answer of {@code ls} in {@code directory}, rendered again only if it changed.
+     */
+    String get(Path directory) throws IOException {
+        var dir = directory.toAbsolutePath().normalize();
+        long seen;
+        synchronized (this) {
+            var entry = entries.get(dir);
+            if (entry != null && System.nanoTime() - entry.loadedAt < ttl) return entry.listing;
+            seen = invalidations;
+        }
+        // Watched before it is read, a change while reading is not missed
+        var key = watch(dir);
+        var listing = render(dir);
+        synchronized (this) {
+            // Changed somewhere while reading, this listing may already be stale
+            if (seen == invalidations) {
+                var previous = entries.put(dir, new Entry(listing, System.nanoTime(), key));
+                if (previous != null && previous.key != key) previous.cancel();
+            }
+        }
+        return listing;
+    }
+
+    synchronized void invalidate(Path directory) {
+        invalidations++;
+        var entry = entries.remove(directory.toAbsolutePath().normalize());
+        if (entry != null) entry.cancel();
+    }
+
+    /**
+     * Drops {@code directory} and every directory below it, once the tree was removed.
+     */
+    synchronized void invalidateTree(Path directory) {
+        invalidations++;
+        var root = directory.toAbsolutePath().normalize();
+        var it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            var entry = it.next();
+            if (!entry.getKey().startsWith(root)) continue;
+            entry.getValue().cancel();
+            it.remove();
+        }
+    }
+
+    /**
+     * Directories first and in blue, then files, each group sorted by name.
+     */
+    static String render(Path directory) throws IOException {
+        var dirList = new ArrayList<String>();
+        var fileList = new ArrayList<String>();
+
+        try (var paths = Files.newDirectoryStream(directory)) {
+            for (var path : paths) {
+                if (Files.isDirectory(path)) dirList.add(path.getFileName().toString());
+                else fileList.add(path.getFileName().toString());
+            }
+        }
+
+        Collections.sort(dirList);
+        Collections.sort(fileList);
+
+        var response = new StringBuilder();
+        for (var dir : dirList) response.append(Printer.formatc("%s", ConsoleColors.BLUE_BRIGHT, dir)).append("\n");
+        response.append(String.join("\n", fileList));
+        return response.toString();
+    }
+
+    // Without a watch service, or once it failed, entries only expire
+    private WatchKey watch(Path dir) {
+        WatchService service;
+        synchronized (this) {
+            if (!watching) {
+                watching = true;
+                try {
+                    watcher = FileSystems.getDefault().newWatchService();
+                    var t = new Thread(this::run, "listing-watcher");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException | UnsupportedOperationException e) {
+                    watcher = null;
+                }
+            }
+            service = watcher;
+        }
+        if (service == null) return null;
+        try {
+            return dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | ClosedWatchServiceException e) {
+            return null;
+        }
+    }
+
+    // Which names changed does not matter, the whole listing is rendered again
+    private void run() {
+        try {
+            while (true) {
+                var key = watcher.take();
+                key.pollEvents();
+                invalidate((Path) key.watchable());
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        WatchService service;
+        synchronized (this) {
+            service = watcher;
+            entries.clear();
+        }
+        if (service != null) try { service.close(); } catch (IOException ignored) {}
+    }
+
+    private record Entry(String listing, long loadedAt, WatchKey key) {
+        void cancel() {
+            if (key != null) key.cancel();
+        }
+    }
+
+}
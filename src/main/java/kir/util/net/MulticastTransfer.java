@@ -0,0 +1,474 @@
+package kir.util.net;
+
+import kir.util.Printer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One-to-many file transfer over a multicast group. The sender multicasts every chunk of a
+ * file once, paced to a rate, and regularly polls the group with the announcement of the file.
+ * Receivers answer a poll with the ranges they miss. A chunk missed by a single receiver is
+ * resent to it alone, one missed by several is multicast again. Once every chunk went out, the
+ * sender keeps polling until the group stays quiet or the expected number of receivers
+ * confirmed the file, then ends the transfer.
+ * <p>
+ * Each packet is {@code [byte type][long transfer][fields]}. Receivers send their NACKs and
+ * confirmations from a unicast socket of their own, which is where single repairs are sent,
+ * so several receivers can share the group port of a host.
+ */
+final class MulticastTransfer implements Closeable {
+
+    // [byte flags][long length][int chunk][int crc32c][int sent][short name length][name]
+    private static final byte ANNOUNCE = 1;
+    // [int seq][payload]
+    private static final byte DATA = 2;
+    // [short count]([int from][int length])*
+    private static final byte NACK = 3;
+    private static final byte DONE = 4;
+    // No more repairs for the transfer
+    private static final byte END = 5;
+
+    private static final int PREFIX_BYTES = 1 + Long.BYTES;
+    private static final int DATA_HEADER = PREFIX_BYTES + Integer.BYTES;
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int MIN_DATAGRAM = 512;
+    // Ranges of a single NACK, a receiver missing more asks again on the next poll
+    private static final int MAX_RANGES = 128;
+    // Chunks multicast between two polls while a file is first sent
+    private static final int POLL_EVERY = 256;
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    // Polls in a row left unanswered by NACKs after which the transfer is over
+    private static final int QUIET_POLLS = 3;
+    // Receivers delay their NACK by up to this, a repair multicast meanwhile shortens it
+    private static final long NACK_JITTER = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long PEER_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    // Receivers give up waiting for an announce after this by default
+    static final long DEFAULT_RECEIVE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+    private static final int END_REPEATS = 3;
+    static final long DEFAULT_RATE = 64L * 1024 * 1024;
+    private static final long MIN_RATE = 1024 * 1024;
+    // Transfers a receiver still confirms when they are polled again
+    private static final int COMPLETED_KEPT = 64;
+
+    private final GroupSocket socket;
+    private final DatagramChannel channel;
+    private final InetSocketAddress group;
+    private final int chunk;
+    private final ByteBuffer out;
+    private final ByteBuffer in;
+    private final Selector selector;
+
+    // Sender
+    private long maxRate;
+    private int receivers;
+    private double rate;
+    private long nextSend;
+
+    // Receiver, repairs sent to this receiver alone arrive on the unicast channel
+    private DatagramChannel unicast;
+    private final Set<Long> completed;
+    private long receiveTimeout;
+
+    MulticastTransfer(GroupSocket socket, int datagramSize) throws IOException {
+        this.socket = socket;
+        this.channel = socket.getSocket();
+        this.group = new InetSocketAddress(socket.getClientAddress(), socket.getClientPort());
+        this.chunk = Math.max(MIN_DATAGRAM, Math.min(datagramSize, MAX_DATAGRAM)) - DATA_HEADER;
+        this.out = ByteBuffer.allocateDirect(DATA_HEADER + chunk);
+        this.in = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        this.selector = Selector.open();
+        this.maxRate = DEFAULT_RATE;
+        this.receivers = 0;
+        this.completed = new LinkedHashSet<>();
+        this.receiveTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RECEIVE_TIMEOUT);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * @param rate      bytes per second multicast at most, lowered while receivers report losses.
+     * @param receivers confirmations a transfer waits for, {@code 0} ends it once NACKs stop.
+     */
+    void configure(long rate, int receivers) {
+        this.maxRate = Math.max(MIN_RATE, rate);
+        this.receivers = receivers;
+    }
+
+    /**
+     * How long a receiver waits for the next file to be announced, {@code 0} waits forever.
+     */
+    void setReceiveTimeout(long millis) {
+        this.receiveTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    void send(Path file, String name, int flags) throws IOException {
+        if (socket.isMember()) throw new IOException("A member of the group cannot distribute files");
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (PREFIX_BYTES + 1 + Long.BYTES + 4 * Integer.BYTES + Short.BYTES + nameBytes.length > out.capacity())
+            throw new IOException("File name too long for a datagram: " + name);
+
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            var length = fc.size();
+            if ((length + chunk - 1) / chunk > Integer.MAX_VALUE) throw new IOException("File too large: " + file);
+            var count = (int) ((length + chunk - 1) / chunk);
+            var t = new Outgoing(ThreadLocalRandom.current().nextLong(), fc, length, count,
+                    NetTransceiver.crc32c(file, length), flags, nameBytes);
+            rate = maxRate;
+            nextSend = System.nanoTime();
+
+            announce(t, 0);
+            for (var seq = 0; seq < count; seq++) {
+                sendData(t, seq, group);
+                if ((seq + 1) % POLL_EVERY == 0 && seq + 1 < count) {
+                    announce(t, seq + 1);
+                    var requested = t.pending.cardinality();
+                    collect(t, 0);
+                    // Losses reported since the last poll slow the pace down, a clean stretch speeds it up
+                    if (t.pending.cardinality() - requested > POLL_EVERY / 16) rate = Math.max(MIN_RATE, rate / 2);
+                    else rate = Math.min(maxRate, rate + maxRate / 16.0);
+                    repair(t);
+                }
+            }
+
+            var quiet = 0;
+            var lastNack = System.nanoTime();
+            while (true) {
+                announce(t, count);
+                if (collect(t, POLL_INTERVAL)) {
+                    repair(t);
+                    quiet = 0;
+                    lastNack = System.nanoTime();
+                } else {
+                    quiet++;
+                }
+                if (receivers > 0 ? t.done.size() >= receivers : quiet >= QUIET_POLLS) break;
+                // Receivers that never showed up are not waited for forever
+                if (System.nanoTime() - lastNack > PEER_TIMEOUT) {
+                    Printer.warning(String.format("[SYSTEM/MULTICAST] %d of %d receivers confirmed %s", t.done.size(), receivers, name));
+                    break;
+                }
+            }
+            for (var i = 0; i < END_REPEATS; i++) control(END, t.id, group);
+        }
+    }
+
+    private void announce(Outgoing t, int sent) throws IOException {
+        out.clear().put(ANNOUNCE).putLong(t.id)
+                .put((byte) t.flags)
+                .putLong(t.length)
+                .putInt(chunk)
+                .putInt(t.crc)
+                .putInt(sent)
+                .putShort((short) t.name.length)
+                .put(t.name);
+        transmit(out.flip(), group);
+    }
+
+    private void sendData(Outgoing t, int seq, SocketAddress target) throws IOException {
+        var position = (long) seq * chunk;
+        out.clear().put(DATA).putLong(t.id).putInt(seq);
+        out.limit(DATA_HEADER + (int) Math.min(chunk, t.length - position));
+        while (out.hasRemaining()) {
+            var n = t.fc.read(out, position + out.position() - DATA_HEADER);
+            if (n == -1) throw new EOFException("File truncated during transfer");
+        }
+        pace(out.limit());
+        transmit(out.flip(), target);
+    }
+
+    // Spaces datagrams to the current rate, a sender falling behind does not burst to catch up
+    private void pace(int bytes) {
+        var now = System.nanoTime();
+        nextSend = Math.max(nextSend, now - TimeUnit.MILLISECONDS.toNanos(1)) + (long) (bytes * 1e9 / rate);
+        var wait = nextSend - now;
+        if (wait > TimeUnit.MILLISECONDS.toNanos(1)) LockSupport.parkNanos(wait);
+    }
+
+    /**
+     * Collects NACKs and confirmations for {@code waitNanos}, or what is already queued if 0.
+     *
+     * @return {@code true} if chunks were requested.
+     */
+    private boolean collect(Outgoing t, long waitNanos) throws IOException {
+        var nacked = false;
+        var deadline = System.nanoTime() + waitNanos;
+        while (true) {
+            SocketAddress source;
+            while ((source = channel.receive(in.clear())) != null) {
+                in.flip();
+                if (in.remaining() < PREFIX_BYTES) continue;
+                var type = in.get();
+                if (in.getLong() != t.id) continue;
+                if (type == DONE) t.done.add(source);
+                else if (type == NACK) nacked |= request(t, source);
+            }
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return nacked;
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private boolean request(Outgoing t, SocketAddress source) {
+        if (in.remaining() < Short.BYTES) return false;
+        var ranges = Math.min(in.getShort() & 0xFFFF, in.remaining() / (2 * Integer.BYTES));
+        var requested = false;
+        for (var i = 0; i < ranges; i++) {
+            var from = in.getInt();
+            var to = (int) Math.min(t.count, (long) from + in.getInt());
+            for (var seq = Math.max(0, from); seq < to; seq++) {
+                requested = true;
+                if (!t.pending.get(seq)) {
+                    t.pending.set(seq);
+                    t.requesters.put(seq, source);
+                } else if (!source.equals(t.requesters.get(seq))) {
+                    t.requesters.put(seq, group);
+                }
+            }
+        }
+        return requested;
+    }
+
+    private void repair(Outgoing t) throws IOException {
+        for (var seq = t.pending.nextSetBit(0); seq >= 0; seq = t.pending.nextSetBit(seq + 1)) {
+            sendData(t, seq, t.requesters.getOrDefault(seq, group));
+        }
+        t.pending.clear();
+        t.requesters.clear();
+    }
+
+    /**
+     * Waits for the next file announced to the group and receives it into a part file of
+     * {@code directory}, which is returned once complete and verified.
+     * @throws SocketTimeoutException if no file was announced within the receive timeout.
+     */
+    Incoming receive(Path directory) throws IOException {
+        if (!socket.isMember()) throw new IOException("Only members of the group receive files");
+        if (unicast == null) {
+            unicast = DatagramChannel.open(group.getAddress() instanceof Inet6Address
+                    ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+            unicast.setOption(StandardSocketOptions.SO_RCVBUF, 1024 * 1024).bind(null).configureBlocking(false);
+            unicast.register(selector, SelectionKey.OP_READ);
+        }
+
+        Incoming t = null;
+        var start = System.nanoTime();
+        try {
+            while (true) {
+                var now = System.nanoTime();
+                if (t != null && now - t.lastHeard > PEER_TIMEOUT)
+                    throw new IOException("Sender of " + t.name + " went silent");
+                // Nothing heard at all, likely a sender on another interface
+                if (t == null && receiveTimeout > 0 && now - start >= receiveTimeout)
+                    throw new SocketTimeoutException("No file announced to the group within "
+                            + TimeUnit.NANOSECONDS.toMillis(receiveTimeout) + " ms");
+                if (t != null && t.nackAt != 0 && now >= t.nackAt) nack(t);
+
+                var timeout = t == null ? receiveTimeout - (now - start) : t.nackAt != 0 ? t.nackAt - now : PEER_TIMEOUT;
+                selector.select(t == null && receiveTimeout == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                selector.selectedKeys().clear();
+                for (var ch : new DatagramChannel[]{channel, unicast}) {
+                    SocketAddress source;
+                    while ((source = ch.receive(in.clear())) != null) {
+                        t = handle(t, source, directory);
+                        if (t != null && t.missing == 0) return finish(t);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (t != null) {
+                t.fc.close();
+                Files.deleteIfExists(t.part);
+            }
+            throw e;
+        }
+    }
+
+    private Incoming handle(Incoming t, SocketAddress source, Path directory) throws IOException {
+        in.flip();
+        if (in.remaining() < PREFIX_BYTES) return t;
+        var type = in.get();
+        var id = in.getLong();
+        if (completed.contains(id)) {
+            // The confirmation was lost, the sender polls again
+            if (type == ANNOUNCE) control(DONE, id, source);
+            return t;
+        }
+        if (type == ANNOUNCE) {
+            if (t != null && t.id != id) throw new IOException("Transfer of " + t.name + " abandoned by the sender");
+            if (t == null) t = start(id, source, directory);
+            t.lastHeard = System.nanoTime();
+            t.polled = Math.min(t.count, Math.max(t.polled, in.getInt(PREFIX_BYTES + 1 + Long.BYTES + 2 * Integer.BYTES)));
+            if (t.nackAt == 0 && t.have.nextClearBit(0) < t.polled)
+                t.nackAt = System.nanoTime() + ThreadLocalRandom.current().nextLong(NACK_JITTER);
+            return t;
+        }
+        if (t == null || t.id != id) return t;
+        t.lastHeard = System.nanoTime();
+        if (type == END) throw new IOException(String.format("Transfer of %s ended with %d of %d chunks missing", t.name, t.missing, t.count));
+        if (type != DATA || in.remaining() < Integer.BYTES) return t;
+
+        var seq = in.getInt();
+        if (seq < 0 || seq >= t.count || t.have.get(seq)) return t;
+        var position = (long) seq * t.chunk;
+        if (in.remaining() != Math.min(t.chunk, t.length - position)) return t;
+        while (in.hasRemaining()) t.fc.write(in, position + in.position() - DATA_HEADER);
+        t.have.set(seq);
+        t.missing--;
+        return t;
+    }
+
+    private Incoming start(long id, SocketAddress sender, Path directory) throws IOException {
+        var flags = in.get() & 0xFF;
+        var length = in.getLong();
+        var chunkSize = in.getInt();
+        var crc = in.getInt();
+        in.getInt();
+        var name = new byte[in.getShort() & 0xFFFF];
+        in.get(name);
+        if (length < 0 || chunkSize <= 0 || (length + chunkSize - 1) / chunkSize > Integer.MAX_VALUE)
+            throw new IOException("Invalid announcement of transfer " + id);
+        // Only the name is kept, a sender cannot write outside the directory
+        var fileName = Path.of(new String(name, StandardCharsets.UTF_8)).getFileName().toString();
+        var part = directory.resolve(fileName + NetTransceiver.PART);
+        var fc = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new Incoming(id, sender, flags, fileName, length, chunkSize, crc, part, fc);
+    }
+
+    private void nack(Incoming t) throws IOException {
+        t.nackAt = 0;
+        out.clear().put(NACK).putLong(t.id).putShort((short) 0);
+        var ranges = 0;
+        var from = t.have.nextClearBit(0);
+        while (from < t.polled && ranges < MAX_RANGES) {
+            var to = t.have.nextSetBit(from);
+            if (to < 0 || to > t.polled) to = t.polled;
+            out.putInt(from).putInt(to - from);
+            ranges++;
+            from = t.have.nextClearBit(to);
+        }
+        if (ranges == 0) return;
+        out.putShort(PREFIX_BYTES, (short) ranges);
+        transmit(out.flip(), t.sender, unicast);
+    }
+
+    private Incoming finish(Incoming t) throws IOException {
+        t.fc.close();
+        if (NetTransceiver.crc32c(t.part, t.length) != t.crc)
+            throw new IOException("Checksum mismatch on " + t.name);
+        completed.add(t.id);
+        if (completed.size() > COMPLETED_KEPT) completed.remove(completed.iterator().next());
+        control(DONE, t.id, t.sender);
+        return t;
+    }
+
+    private void control(byte type, long id, SocketAddress target) throws IOException {
+        out.clear().put(type).putLong(id);
+        transmit(out.flip(), target, socket.isMember() ? unicast : channel);
+    }
+
+    private void transmit(ByteBuffer datagram, SocketAddress target) throws IOException {
+        transmit(datagram, target, channel);
+    }
+
+    // Non-blocking channels refuse a datagram while the socket buffer is full, it is retried
+    private static void transmit(ByteBuffer datagram, SocketAddress target, DatagramChannel ch) throws IOException {
+        while (ch.send(datagram, target) == 0) LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    }
+
+    @Override
+    public void close() {
+        try { selector.close(); } catch (IOException ignored) {}
+        if (unicast != null) try { unicast.close(); } catch (IOException ignored) {}
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    private static final class Outgoing {
+        final long id;
+        final FileChannel fc;
+        final long length;
+        final int count;
+        final int crc;
+        final int flags;
+        final byte[] name;
+        // Chunks to resend, with the receiver that asked or the group if several did
+        final BitSet pending = new BitSet();
+        final Map<Integer, SocketAddress> requesters = new HashMap<>();
+        final Set<SocketAddress> done = new HashSet<>();
+
+        Outgoing(long id, FileChannel fc, long length, int count, int crc, int flags, byte[] name) {
+            this.id = id;
+            this.fc = fc;
+            this.length = length;
+            this.count = count;
+            this.crc = crc;
+            this.flags = flags;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A file being received, complete once no chunk is missing.
+     */
+    static final class Incoming {
+        final long id;
+        final SocketAddress sender;
+        final int flags;
+        final String name;
+        final long length;
+        final int chunk;
+        final int count;
+        final int crc;
+        final Path part;
+        final FileChannel fc;
+        final BitSet have;
+        int missing;
+        int polled;      // Chunks the sender announced as sent, those missing below are asked for
+        long nackAt;     // When the pending NACK leaves, 0 if none
+        long lastHeard;
+
+        Incoming(long id, SocketAddress sender, int flags, String name, long length, int chunk, int crc, Path part, FileChannel fc) {
+            this.id = id;
+            this.sender = sender;
+            this.flags = flags;
+            this.name = name;
+            this.length = length;
+            this.chunk = chunk;
+            this.count = (int) ((length + chunk - 1) / chunk);
+            this.crc = crc;
+            this.part = part;
+            this.fc = fc;
+            this.have = new BitSet(count);
+            this.missing = count;
+            this.lastHeard = System.nanoTime();
+        }
+    }
+
+}
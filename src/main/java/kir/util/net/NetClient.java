@@ -1,101 +1,549 @@
 package kir.util.net;
 
 import kir.util.CommandParser;
+import kir.util.ParsedCommand;
 import kir.util.Printer;
-import kir.util.StickyFinger;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.UUID;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public final class NetClient implements Closeable {
 
-    private final NetTransceiver transceiver;
+    // Delay before the first reconnection of an interrupted transfer, doubled on every attempt
+    private static final long RETRY_DELAY = 500;
+
+    private final SocketMode mode;
+    private final String endpoint;
+    private final int port;
     private final Path receivedPath;
+    private final NetworkInterface networkInterface;   // Only for MULTICAST, null for the default one
+    private final List<String> directories;
+    private NetTransceiver transceiver;
+    private String credential;
+    private int retries;
+    private int stripes;
+    private String token;
+    private boolean delta;
+    private int minBuffer;
+    private int maxBuffer;
+    private Consumer<String> progress;
+
+    // Pipelined requests waiting for their response, also guards the reader and stream state
+    private final Map<Integer, CompletableFuture<String>> pending;
+    private int nextId;
+    private boolean reading;
+    // Replies to synchronous commands read by the reader of pipelined ones, in order
+    private final ArrayDeque<String> untagged;
+    // Thread using the stream synchronously, pipelined commands wait until it is done
+    private Thread owner;
+    private int holds;
+    private int waiters;
 
     public NetClient(SocketMode mode, String endpoint, int port) throws IOException {
-        int bufSize = 2048; // Default buffer size before negotiation
-        receivedPath = Path.of("received");
+        this(mode, endpoint, port, null);
+    }
+
+    /**
+     * Same as {@link #NetClient(SocketMode, String, int)} but a {@link SocketMode#MULTICAST} client
+     * joins the group on {@code nif}, the interface the server sends through.
+     */
+    public NetClient(SocketMode mode, String endpoint, int port, NetworkInterface nif) throws IOException {
+        if (nif != null && mode != SocketMode.MULTICAST) throw new IllegalArgumentException("Only multicast clients join on an interface");
+        this.mode = mode;
+        this.networkInterface = nif;
+        this.endpoint = endpoint;
+        this.port = port;
+        this.receivedPath = Path.of("received");
+        this.directories = new ArrayList<>();
+        this.credential = null;
+        this.retries = 3;
+        this.stripes = 1;
+        this.token = null;
+        this.delta = false;
+        this.minBuffer = 0;
+        this.maxBuffer = 0;
+        this.pending = new HashMap<>();
+        this.nextId = 0;
+        this.reading = false;
+        this.untagged = new ArrayDeque<>();
+        this.owner = null;
+        this.holds = 0;
         verifyReceivedDirectory();
+        this.transceiver = open();
+    }
+
+    private NetTransceiver open() throws IOException {
+        int bufSize = 2048; // Default buffer size before negotiation
         switch (mode) {
             case TCP: {
-                var tcpSocket = new TCPSocket(new Socket(endpoint, port), bufSize);
-                this.transceiver = new NetTransceiver(tcpSocket, mode, bufSize);
-                break;
+                var address = new InetSocketAddress(endpoint, port);
+                if (address.isUnresolved()) throw new UnknownHostException(endpoint);
+                var tcpSocket = new TCPSocket(SocketChannel.open(address).socket(), bufSize);
+                return new NetTransceiver(tcpSocket, mode, bufSize);
             }
             case UDP: {
                 var socket = UDPSocket.locate(endpoint, port, bufSize);
-                this.transceiver = new NetTransceiver(socket, mode, socket.getBufferSize());
-                break;
+                return new NetTransceiver(socket, mode, socket.getBufferSize());
+            }
+            case MULTICAST: {
+                // The endpoint is the group, files arrive on the port of the server
+                var socket = networkInterface == null
+                        ? GroupSocket.join(endpoint, port, bufSize)
+                        : GroupSocket.join(endpoint, port, bufSize, networkInterface);
+                return new NetTransceiver(socket, mode, bufSize);
             }
-            case MULTICAST:
             default: throw new UnsupportedOperationException("Not implemented");
         }
     }
 
+    /**
+     * Completes the greeting of the server and adopts its buffer size. A password prompt is
+     * answered with the BCrypt hash given by {@code credential}, the hash is kept so that an
+     * interrupted transfer can reconnect on its own.
+     *
+     * A multicast group has no greeting, joining it is enough.
+     *
+     * @return {@code false} if the server rejected the credential.
+     */
+    public boolean handshake(Supplier<String> credential) throws IOException {
+        if (mode == SocketMode.MULTICAST) return true;
+        var resp = transceiver.receive();
+        if (resp.equalsIgnoreCase("auth")) {
+            var hash = credential.get();
+            if (hash == null) return false;
+            this.credential = hash;
+            transceiver.send(hash);
+            resp = transceiver.receive();
+        }
+        if (!resp.equalsIgnoreCase("authenticated")) return false;
+        // Buffer size, followed by the striping limit and token of servers supporting it
+        var params = transceiver.receive().trim().split(" ");
+        transceiver.setBufferSize(Integer.parseInt(params[0]));
+        var agreed = params.length >= 3 ? Math.min(stripes, Integer.parseInt(params[1])) : 1;
+        if (agreed > 1) {
+            token = params[2];
+            transceiver.send("stripes " + agreed);
+            transceiver.setStripes(agreed, this::openStripe);
+        }
+        return true;
+    }
+
+    /**
+     * Number of TCP connections used to transfer a single large file, must be set before the
+     * {@link #handshake(Supplier) handshake} which caps it to what the server allows.
+     */
+    public void setStripes(int stripes) {
+        if (stripes <= 0) throw new IllegalArgumentException("Stripes must be greater than 0");
+        this.stripes = stripes;
+    }
+
+    /**
+     * Uploads a single file as a delta against the version already on the server, so only the
+     * changed blocks travel. Worth it for large files that change little between uploads.
+     */
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    private SocketChannel openStripe() throws IOException {
+        var data = open();
+        try {
+            if (data.receive().equalsIgnoreCase("authenticated")) data.receive();
+            data.send("attach " + token);
+            if (!data.receive().equalsIgnoreCase("attached")) throw new IOException("Server refused the data connection");
+            return data.getChannel();
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of times an interrupted {@code up} or {@code cp} reconnects and resumes, waiting
+     * twice as long before each new attempt. {@code 0} disables retrying.
+     */
+    public void setRetries(int retries) {
+        if (retries < 0) throw new IllegalArgumentException("Retries must not be negative");
+        this.retries = retries;
+    }
+
+    /**
+     * Bounds within which uploads and downloads tune their chunks and the socket buffers, see
+     * {@link NetServer#setTuning(int, int)}.
+     */
+    public void setTuning(int minBuffer, int maxBuffer) {
+        this.transceiver.setTuning(minBuffer, maxBuffer);
+        this.minBuffer = minBuffer;
+        this.maxBuffer = maxBuffer;
+    }
+
+    public int getBufferSize() {
+        return this.transceiver.getBufferSize();
+    }
+
     public void setBufferSize(int bufSize) {
         this.transceiver.setBufferSize(bufSize);
     }
 
     public String sendw(String str) throws IOException {
-        if (!send(str)) return "";
+        lock();
+        try {
+            if (!send(str)) return "";
+            return response();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Receives the progress of long commands such as {@code rmdir}, reported while the client
+     * waits for their response. Reports are dropped by default.
+     */
+    public void setProgress(Consumer<String> progress) {
+        this.progress = progress;
+    }
+
+    // Progress reports may come ahead of the response
+    private String response() throws IOException {
+        while (true) {
+            var msg = next();
+            if (!msg.startsWith(NetTransceiver.PROGRESS)) return msg;
+            if (progress != null) progress.accept(msg.substring(NetTransceiver.PROGRESS.length()));
+        }
+    }
+
+    /**
+     * Sends an {@code ls} with options and hands each page of the listing to {@code page} as it
+     * arrives. The next page is asked for before this one is handed over, so the server reads
+     * the directory on while the client renders.
+     */
+    public void list(String command, Consumer<String> page) throws IOException {
+        lock();
+        try {
+            if (!send(command)) return;
+            while (true) {
+                var resp = next();
+                var last = resp.lastIndexOf('\n') + 1;
+                if (!resp.startsWith(DirectoryListing.MORE, last)) {
+                    page.accept(resp);
+                    return;
+                }
+                transceiver.send("ls -c " + resp.substring(last + DirectoryListing.MORE.length()));
+                page.accept(resp.substring(0, Math.max(0, last - 1)));
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Sends a command without waiting for the answers of the commands sent before it, so many
+     * commands share a round trip. The future completes with everything the server answered.
+     * May be called from any thread, file transfers cannot be pipelined and the other methods
+     * of this client wait until every pipelined command is answered. A command sent while
+     * another thread uses the client synchronously waits until that thread is done.
+     */
+    public CompletableFuture<String> sendAsync(String str) {
+        var future = new CompletableFuture<String>();
+        ParsedCommand cmdArr;
+        try {
+            cmdArr = CommandParser.parse(str);
+        } catch (IllegalArgumentException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        var cmd = cmdArr.getName();
+        if (mode == SocketMode.MULTICAST) {
+            future.completeExceptionally(new UnsupportedOperationException("Pipelining requires a TCP or UDP connection"));
+            return future;
+        }
+        if (cmd.equalsIgnoreCase("up") || cmd.equalsIgnoreCase("cp")) {
+            future.completeExceptionally(new UnsupportedOperationException("File transfers cannot be pipelined"));
+            return future;
+        }
+
+        synchronized (pending) {
+            try {
+                while ((owner != null && owner != Thread.currentThread()) || waiters > 0) pending.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(new InterruptedIOException("Interrupted while waiting for the connection"));
+                return future;
+            }
+            var id = ++nextId;
+            try {
+                transceiver.send(NetTransceiver.TAG + id + " " + str);
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+            pending.put(id, future);
+            if (cmd.equalsIgnoreCase("cd")) trackDirectory(str, cmdArr.getArgs());
+            if (!reading) {
+                reading = true;
+                var reader = new Thread(this::readResponses, "netclient-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+        return future;
+    }
+
+    // Runs while pipelined requests are pending, the stream is left alone otherwise
+    private void readResponses() {
+        while (true) {
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    reading = false;
+                    pending.notifyAll();
+                    return;
+                }
+            }
+            String msg;
+            try {
+                msg = transceiver.receive();
+            } catch (IOException e) {
+                synchronized (pending) {
+                    pending.values().forEach(f -> f.completeExceptionally(e));
+                    pending.clear();
+                    reading = false;
+                    pending.notifyAll();
+                }
+                return;
+            }
+            var space = msg.indexOf(' ');
+            if (!msg.startsWith(NetTransceiver.TAG) || space < 0) {
+                // Answer to a command sent synchronously, kept for the thread that reads it
+                synchronized (pending) {
+                    untagged.add(msg);
+                }
+                continue;
+            }
+            CompletableFuture<String> future;
+            synchronized (pending) {
+                try {
+                    future = pending.remove(Integer.parseInt(msg.substring(NetTransceiver.TAG.length(), space)));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            if (future != null) future.complete(msg.substring(space + 1));
+        }
+    }
+
+    /**
+     * Keeps the stream for the calling thread until {@link #unlock()}, once no pipelined command
+     * is being read. Reentrant, the public methods nest.
+     */
+    private void lock() throws IOException {
+        synchronized (pending) {
+            var self = Thread.currentThread();
+            // Pipelined commands sent meanwhile wait, so the reader runs out of them
+            waiters++;
+            try {
+                while (reading || (owner != null && owner != self)) pending.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for pipelined commands");
+            } finally {
+                waiters--;
+            }
+            owner = self;
+            holds++;
+        }
+    }
+
+    private void unlock() {
+        synchronized (pending) {
+            if (--holds > 0) return;
+            owner = null;
+            pending.notifyAll();
+        }
+    }
+
+    // Replies read meanwhile by the reader of pipelined commands come first
+    private String next() throws IOException {
+        synchronized (pending) {
+            var msg = untagged.poll();
+            if (msg != null) return msg;
+        }
         return transceiver.receive();
     }
 
     public boolean send(String str) throws IOException {
+        lock();
+        try {
+            return sendLocked(str);
+        } finally {
+            unlock();
+        }
+    }
+
+    private boolean sendLocked(String str) throws IOException {
         var cmdArr = CommandParser.parse(str);
-        var cmd = cmdArr.getKey();
+        var cmd = cmdArr.getName();
 
-        if (cmd.equalsIgnoreCase("up") || cmd.equalsIgnoreCase("cp")) {
+        if ((cmd.equalsIgnoreCase("up") || cmd.equalsIgnoreCase("cp")) && transceiver.getSocketMode() == SocketMode.MULTICAST) {
             Printer.printf("Current mode %s does not support file operations.", transceiver.getSocketMode());
             return false;
         }
 
-        if (cmdArr.getKey().equalsIgnoreCase("up")) {
-            if (cmdArr.getValue().stream().map(Path::of).anyMatch(p -> !Files.exists(p))) {
+        if (cmd.equalsIgnoreCase("up")) {
+            var files = Arrays.stream(cmdArr.getArgs()).map(Path::of).toArray(Path[]::new);
+            if (Arrays.stream(files).anyMatch(p -> !Files.exists(p))) {
                 Printer.error("Some files does not exist.");
                 return false;
             }
-            transceiver.send(cmd);
-            sendFiles(cmdArr.getValue().stream().map(Path::of).toArray(Path[]::new));
-            Printer.success("File sent.");
-            Printer.warning("Waiting for server to decompress...");
-            return true;
+            return retry(() -> {
+                transceiver.send(cmd);
+                try {
+                    sendFiles(files);
+                    Printer.success("File sent.");
+                } catch (NetTransceiver.AbortedException e) {
+                    // The server was told and answers with the reason
+                    Printer.error("Upload aborted: " + e.getMessage());
+                }
+                return true;
+            });
         }
 
-        if (cmdArr.getKey().equalsIgnoreCase("cp")) {
-            transceiver.send(str);
+        if (cmd.equalsIgnoreCase("cp")) {
             if (!Files.exists(receivedPath)) Files.createDirectories(receivedPath);
-            var readiness = transceiver.receive();
-            if (!readiness.equalsIgnoreCase("ok")) {
-                Printer.error("Some files do not exist.");
+            return retry(() -> {
+                transceiver.send(str);
+                var readiness = next();
+                if (!readiness.equalsIgnoreCase("ok")) {
+                    Printer.error("Some files do not exist.");
+                    return false;
+                }
+                try {
+                    var output = transceiver.receiveFile(receivedPath);
+                    Printer.success("File saved to " + output.toAbsolutePath());
+                } catch (NetTransceiver.AbortedException e) {
+                    Printer.error("Transfer aborted by the server: " + e.getMessage());
+                }
                 return false;
-            }
-            var output = transceiver.receiveFile(receivedPath);
-            Printer.success("File saved to " + output.toAbsolutePath());
-            return false;
+            });
         }
 
         transceiver.send(str);
+        if (cmd.equalsIgnoreCase("cd")) trackDirectory(str, cmdArr.getArgs());
         return true;
     }
 
+    /**
+     * Runs a file transfer, reconnecting after a failure. Single files resume from the bytes
+     * the receiver already holds, archives start over.
+     */
+    private boolean retry(Transfer transfer) throws IOException {
+        for (var attempt = 0; ; attempt++) {
+            try {
+                if (attempt > 0) reconnect();
+                return transfer.run();
+            } catch (IOException e) {
+                if (attempt >= retries) throw e;
+                var delay = RETRY_DELAY << attempt;
+                Printer.warning(String.format("%nTransfer interrupted (%s). Retrying in %d ms...", e.getMessage(), delay));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void reconnect() throws IOException {
+        var bufSize = transceiver.getBufferSize();
+        transceiver.close();
+        transceiver = open();
+        synchronized (pending) {
+            untagged.clear();   // Answers of the lost connection
+        }
+        if (minBuffer > 0) transceiver.setTuning(minBuffer, maxBuffer);
+        if (!handshake(() -> credential)) throw new IOException("Server rejected the credential on reconnection");
+        if (mode != SocketMode.TCP) transceiver.setBufferSize(bufSize);
+        // The new session starts at the root, walk back to the working directory
+        for (var cd : directories) {
+            transceiver.send(cd);
+            transceiver.receive();
+        }
+    }
+
+    private void trackDirectory(String cmd, String[] args) {
+        if (args.length > 0 && (args[0].equals("~") || args[0].equals("/"))) directories.clear();
+        else directories.add(cmd);
+    }
+
     public void sendFiles(Path... files) throws IOException {
-        if (files.length != 1 || Files.isDirectory(files[0])) {
-            Printer.warning("Directory or multiple files detected. Compressing...");
-            var zipName = "cache/" + UUID.randomUUID() + ".zip";
-            var zipPath = StickyFinger.zip(zipName, files);
-            transceiver.sendFile(zipPath.toFile(), true);
-            return;
+        lock();
+        try {
+            if (files.length != 1 || Files.isDirectory(files[0])) {
+                Printer.warning("Directory or multiple files detected. Streaming as archive...");
+                transceiver.sendArchive(List.of(files));
+                return;
+            }
+            if (delta) transceiver.sendFileDelta(files[0].toFile());
+            else transceiver.sendFile(files[0].toFile(), false);
+        } finally {
+            unlock();
         }
-        transceiver.sendFile(files[0].toFile(), false);
+    }
+
+    /**
+     * How long {@link #receiveFile()} waits for the next file before it throws a
+     * {@link java.net.SocketTimeoutException}, {@code 0} waits forever. Defaults to
+     * {@value MulticastTransfer#DEFAULT_RECEIVE_TIMEOUT} milliseconds.
+     */
+    public void setReceiveTimeout(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Timeout must not be negative");
+        transceiver.setReceiveTimeout(millis);
+    }
+
+    /**
+     * Waits for the next file distributed to the group and saves it to {@code received}, an
+     * archive of several files is extracted there. Only for {@link SocketMode#MULTICAST}.
+     *
+     * @return the saved file, or the directory an archive was extracted to.
+     */
+    public Path receiveFile() throws IOException {
+        return receiveFile(receivedPath);
+    }
+
+    /**
+     * Same as {@link #receiveFile()} but saves to {@code directory}, so that several members of
+     * a group may run on the same host.
+     */
+    public Path receiveFile(Path directory) throws IOException {
+        if (mode != SocketMode.MULTICAST) throw new IllegalStateException("Only multicast clients receive distributed files");
+        if (!Files.exists(directory)) Files.createDirectories(directory);
+        return transceiver.receiveFile(directory);
     }
 
     public String receive() throws IOException {
-        return transceiver.receive();
+        lock();
+        try {
+            return response();
+        } finally {
+            unlock();
+        }
     }
 
     @Override
@@ -107,4 +555,9 @@ public final class NetClient implements Closeable {
         if (Files.exists(receivedPath)) Files.createDirectories(receivedPath);
     }
 
+    @FunctionalInterface
+    private interface Transfer {
+        boolean run() throws IOException;
+    }
+
 }
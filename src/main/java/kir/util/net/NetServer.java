@@ -1,15 +1,22 @@
 package kir.util.net;
 
-import at.favre.lib.crypto.bcrypt.BCrypt;
 import kir.util.ConsoleColors;
 import kir.util.Printer;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 public final class NetServer implements AutoCloseable {
 
@@ -17,69 +24,293 @@ public final class NetServer implements AutoCloseable {
     private final int port;
     private final int bufSize;
     private final ExecutorService executor;
+    private final ServerMetrics metrics;
+    private final StripeRegistry stripes;
+    private ArchiveCache archives;
+    private ListingCache listings;
+    // Shared by the deletions of rm and rmdir and the archives of cp, whatever the number of sessions
+    private final ForkJoinPool tasks;
     private char[] pwh;
+    // Replaced by setMaxSessions, a session releases the one it acquired from
+    private volatile Semaphore sessions;
+    private ServerEngine engine;
+    private int eventLoops;
+    private int acceptors;
+    private int workers;
+    private int maxStripes;
+    private int minBuffer;
+    private int maxBuffer;
+    private String group;
+    private NetworkInterface groupInterface;
+    private long multicastRate;
+    private int multicastReceivers;
+    private final BlockingQueue<Distribution> distributions;
+    private volatile Reactor reactor;
+    private volatile Thread distributor;
 
     public NetServer(SocketMode mode, int port, int bufSize) {
+        this(mode, port, bufSize, SessionExecutor.PLATFORM);
+    }
+
+    public NetServer(SocketMode mode, int port, int bufSize, SessionExecutor sessionExecutor) {
         this.mode = mode;
         this.port = port;
         this.bufSize = bufSize;
-        this.executor = Executors.newCachedThreadPool();
+        this.executor = sessionExecutor.create();
+        this.metrics = new ServerMetrics();
+        this.stripes = new StripeRegistry();
+        this.archives = null;
+        this.listings = new ListingCache(ListingCache.DEFAULT_TTL);
+        this.tasks = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
         this.pwh = null;
+        this.sessions = null;
+        this.engine = ServerEngine.BLOCKING;
+        this.eventLoops = 1;
+        this.acceptors = 1;
+        this.workers = Runtime.getRuntime().availableProcessors() * 2;
+        this.maxStripes = 4;
+        this.group = GroupSocket.DEFAULT_GROUP;
+        this.multicastRate = MulticastTransfer.DEFAULT_RATE;
+        this.multicastReceivers = 0;
+        this.distributions = new LinkedBlockingQueue<>();
     }
 
     public void setCredential(String password) {
-        if (mode != SocketMode.TCP) {
-            Printer.warning("Password server only support TCP socket. Action ignored");
+        if (mode == SocketMode.MULTICAST) {
+            Printer.warning("Password server only support TCP and UDP sockets. Action ignored");
             return;
         }
         this.pwh = password.trim().toCharArray();
     }
 
-    public void listen() {
-        try {
-            switch (mode) {
-                case TCP: listenTcp(CommandHandler.class); break;
-                case UDP: listenUdp(CommandHandler.class); break;
-                case MULTICAST: throw new UnsupportedOperationException("Not implemented");
+    /**
+     * Caps the number of concurrently served sessions of the {@link ServerEngine#BLOCKING} engine,
+     * further clients wait in the accept backlog until a slot frees up. {@code 0} means unlimited.
+     * A new cap applies to the clients accepted after it, sessions already running keep counting
+     * against the previous one.
+     */
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 0) throw new IllegalArgumentException("Max sessions must not be negative");
+        this.sessions = maxSessions == 0 ? null : new Semaphore(maxSessions);
+    }
+
+    public void setEngine(ServerEngine engine) {
+        if (mode != SocketMode.TCP && engine == ServerEngine.REACTOR) {
+            Printer.warning("Reactor engine only support TCP socket. Action ignored");
+            return;
+        }
+        this.engine = engine;
+    }
+
+    /**
+     * Sizes the {@link ServerEngine#REACTOR} engine. The thread count stays at
+     * {@code eventLoops + acceptors + workers} no matter how many clients are connected, plus a
+     * spare worker for each striped transfer waiting for its data connections. Acceptors beyond
+     * the first one share the port through {@code SO_REUSEPORT}.
+     */
+    public void setReactorThreads(int eventLoops, int acceptors, int workers) {
+        if (eventLoops <= 0 || acceptors <= 0 || workers <= 0)
+            throw new IllegalArgumentException("Reactor thread counts must be greater than 0");
+        this.eventLoops = eventLoops;
+        this.acceptors = acceptors;
+        this.workers = workers;
+    }
+
+    /**
+     * Upper bound of the connections a client may use to transfer one large file, announced
+     * during the handshake. {@code 1} disables striped transfers.
+     */
+    public void setMaxStripes(int maxStripes) {
+        if (maxStripes <= 0 || maxStripes > 255) throw new IllegalArgumentException("Max stripes must be between 1 and 255");
+        this.maxStripes = maxStripes;
+    }
+
+    /**
+     * Bounds within which each session tunes the chunks of file bodies and its socket buffers
+     * to the round trips and throughput of its transfers, a fixed size when both are the same.
+     * By default chunks stay between the buffer size and
+     * {@value TransferTuning#DEFAULT_MAX_BUFFER} bytes.
+     */
+    public void setTuning(int minBuffer, int maxBuffer) {
+        if (minBuffer <= 0 || maxBuffer < minBuffer) throw new IllegalArgumentException("Invalid buffer bounds");
+        this.minBuffer = minBuffer;
+        this.maxBuffer = maxBuffer;
+    }
+
+    /**
+     * Keeps the archives sent by {@code cp} in {@code directory} for later requests of the same
+     * unchanged targets, {@code maxBytes} of them at most. Each miss writes its archive to disk
+     * while streaming it, so the cache is off by default. {@code 0} disables it again.
+     */
+    public void setArchiveCache(Path directory, long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("Cache size must not be negative");
+        this.archives = maxBytes == 0 ? null : new ArchiveCache(directory, maxBytes);
+    }
+
+    /**
+     * How long the answers of {@code ls} are kept at most, they are dropped sooner when the
+     * directory changes. {@code 0} disables the cache. Defaults to
+     * {@value ListingCache#DEFAULT_TTL} milliseconds.
+     */
+    public void setListingCache(long ttlMillis) {
+        if (ttlMillis < 0) throw new IllegalArgumentException("Listing cache duration must not be negative");
+        if (listings != null) listings.close();
+        this.listings = ttlMillis == 0 ? null : new ListingCache(ttlMillis);
+    }
+
+    /**
+     * Multicast group the files of a {@link SocketMode#MULTICAST} server are distributed to,
+     * receivers join it on the port of the server. Defaults to {@value GroupSocket#DEFAULT_GROUP}.
+     */
+    public void setGroup(String group) {
+        setGroup(group, null);
+    }
+
+    /**
+     * Same as {@link #setGroup(String)} but sends through {@code nif}, which receivers must have
+     * joined the group on. {@code null} picks the first multicast interface that is up, the
+     * loopback interface serves a server and receivers on the same host.
+     */
+    public void setGroup(String group, NetworkInterface nif) {
+        this.group = group;
+        this.groupInterface = nif;
+    }
+
+    /**
+     * Bytes per second a {@link SocketMode#MULTICAST} server sends at most, the pace drops
+     * while receivers report losses. {@code receivers} is how many confirmations a file waits
+     * for, {@code 0} ends a file once the group stops asking for repairs.
+     */
+    public void setMulticast(long rate, int receivers) {
+        if (rate <= 0) throw new IllegalArgumentException("Rate must be greater than 0");
+        if (receivers < 0) throw new IllegalArgumentException("Receivers must not be negative");
+        this.multicastRate = rate;
+        this.multicastReceivers = receivers;
+    }
+
+    /**
+     * Queues {@code files} for distribution to the group of a {@link SocketMode#MULTICAST} server,
+     * which sends them once {@link #listen()} runs. Several files or a directory go as a single
+     * archive that receivers extract. The future completes when the group received them.
+     */
+    public CompletableFuture<Void> distribute(Path... files) {
+        if (mode != SocketMode.MULTICAST) throw new IllegalStateException("Only multicast servers distribute files");
+        if (files.length == 0) throw new IllegalArgumentException("Nothing to distribute");
+        var done = new CompletableFuture<Void>();
+        for (var file : files) {
+            if (!Files.exists(file)) {
+                done.completeExceptionally(new NoSuchFileException(file.toString()));
+                return done;
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Error starting server", e);
         }
+        distributions.add(new Distribution(List.of(files), done));
+        return done;
+    }
+
+    /**
+     * Live instrumentation of this server, call {@link ServerMetrics#snapshot()} to read it.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void listen() {
+        listen(CommandHandler::new);
     }
 
     public void listen(Class<? extends CommandHandler> cmdHandler) {
+        listen(HandlerFactory.of(cmdHandler));
+    }
+
+    public void listen(HandlerFactory cmdHandler) {
         try {
             switch (mode) {
                 case TCP: listenTcp(cmdHandler); break;
                 case UDP: listenUdp(cmdHandler); break;
-                case MULTICAST: throw new UnsupportedOperationException("Not implemented");
+                case MULTICAST: listenMulticast(); break;
             }
         } catch (IOException e) {
             throw new RuntimeException("Error starting server", e);
         }
     }
 
-    private void listenTcp(Class<? extends CommandHandler> handler) throws IOException {
-        try (var ss = new ServerSocket(port)) {
+    private void listenTcp(HandlerFactory handler) throws IOException {
+        if (engine == ServerEngine.REACTOR) {
+            listenReactor(handler);
+            return;
+        }
+        // Opened through NIO so that accepted sockets carry a channel for zero-copy file transfer
+        try (var ss = ServerSocketChannel.open().bind(new InetSocketAddress(port))) {
             Printer.printfc("[SYSTEM/TCP] Listening on port %d...%n", ConsoleColors.GREEN, port);
             while (true) {
-                var client = ss.accept();
-                executor.submit(() -> handleClient(new TCPSocket(client, bufSize), handler));
+                var slots = acquireSession();
+                try {
+                    var client = ss.accept().socket();
+                    executor.submit(() -> handleClient(new TCPSocket(client, bufSize), handler, slots));
+                } catch (IOException | RuntimeException e) {
+                    if (slots != null) slots.release();
+                    throw e;
+                }
             }
         }
     }
 
-    private void listenUdp(Class<? extends CommandHandler> handler) throws IOException {
-        try (var ds = new DatagramSocket(port)) {
+    private void listenReactor(HandlerFactory handler) throws IOException {
+        Reactor.SessionFactory factory = ch -> newSession(new TCPSocket(ch.socket(), bufSize), handler);
+        try (var r = new Reactor(port, eventLoops, acceptors, workers, factory)) {
+            reactor = r;
+            Printer.printfc("[SYSTEM/TCP] Listening on port %d (reactor: %d loops, %d acceptors, %d workers)...%n",
+                    ConsoleColors.GREEN, port, eventLoops, acceptors, workers);
+            r.run();
+        }
+    }
+
+    private void listenUdp(HandlerFactory handler) throws IOException {
+        // Sessions share the listening socket, a client locating the server is answered with the buffer size
+        try (var ss = new UDPServerSocket(port, bufSize)) {
             Printer.printfc("[SYSTEM/UDP] Listening on port %d...%n", ConsoleColors.GREEN, port);
-            var locatePkt = new DatagramPacket(new byte[8], 8);   // Server will listen for locate packet// Then send the current buffer size for client to readjust before continue
             while (true) {
-                ds.receive(locatePkt);
-                var socket = UDPSocket.negotiate(ds, locatePkt, bufSize);
-                if (socket == null) continue;
-                handleClient(socket, handler);
-                executor.submit(() -> handleClient(socket, handler));
+                var slots = acquireSession();
+                try {
+                    var socket = ss.accept();
+                    executor.submit(() -> handleClient(socket, handler, slots));
+                } catch (IOException | RuntimeException e) {
+                    if (slots != null) slots.release();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Groups have no sessions, the files queued by distribute are sent one after the other
+    private void listenMulticast() throws IOException {
+        var socket = groupInterface == null
+                ? GroupSocket.sender(group, port, bufSize)
+                : GroupSocket.sender(group, port, bufSize, groupInterface);
+        try (var transceiver = new NetTransceiver(socket, mode, bufSize)) {
+            transceiver.setMetrics(metrics);
+            transceiver.setTaskPool(tasks);
+            transceiver.setMulticast(multicastRate, multicastReceivers);
+            distributor = Thread.currentThread();
+            Printer.printfc("[SYSTEM/MULTICAST] Distributing to %s:%d...%n", ConsoleColors.GREEN, group, port);
+            while (true) {
+                Distribution next;
+                try {
+                    next = distributions.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    var files = next.files();
+                    if (files.size() == 1 && !Files.isDirectory(files.get(0))) transceiver.sendFile(files.get(0).toFile(), false);
+                    else transceiver.sendArchive(files);
+                    next.done().complete(null);
+                } catch (IOException | RuntimeException e) {
+                    next.done().completeExceptionally(e);
+                }
             }
+        } finally {
+            distributor = null;
         }
     }
 
@@ -93,64 +324,53 @@ public final class NetServer implements AutoCloseable {
 //        }
 //    }
 
-    private <T> void handleClient(NetSocket<T> socket, Class<? extends CommandHandler> clazz) {
+    private <T> void handleClient(NetSocket<T> socket, HandlerFactory factory, Semaphore slots) {
         try {
-            var transceiver = new NetTransceiver(socket, mode, bufSize);
-            var handler = getHandler(clazz, transceiver);
-            handleClient(socket, transceiver, handler);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private <T> void handleClient(NetSocket<T> socket, NetTransceiver transceiver, CommandHandler handler) throws IOException {
-        var clientAddr = socket.getClientAddress();
-        if (!authenticate(transceiver)) return;
-        if (mode == SocketMode.TCP) transceiver.send(String.valueOf(bufSize));
-        Printer.printfc("[SYSTEM/%s] (%s) Connected%n", ConsoleColors.CYAN, mode.toString(), clientAddr);
-        try {
-            while (!socket.isClosed()) {
-                var cmd = transceiver.receive();
-                handler.handle(cmd);
+            ServerSession session;
+            try {
+                session = newSession(socket, factory);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            try (session) {
+                session.greet();
+                while (session.step());
+            } catch (IOException ignored) {
             }
-        } catch (IOException ignored) {
         } finally {
-            Printer.printfc("[SYSTEM/%s] (%s) Disconnected%n", ConsoleColors.CYAN, mode.toString(), clientAddr);
+            if (slots != null) slots.release();
         }
     }
 
+    // The semaphore acquired from, or null when sessions are unlimited
+    private Semaphore acquireSession() {
+        var slots = sessions;
+        if (slots != null) slots.acquireUninterruptibly();
+        return slots;
+    }
+
+    private ServerSession newSession(NetSocket<?> socket, HandlerFactory factory) throws IOException {
+        var transceiver = new NetTransceiver(socket, mode, bufSize);
+        transceiver.setMetrics(metrics);
+        transceiver.setArchiveCache(archives);
+        transceiver.setListingCache(listings);
+        transceiver.setTaskPool(tasks);
+        if (minBuffer > 0) transceiver.setTuning(minBuffer, maxBuffer);
+        var handler = factory.create(transceiver);
+        return new ServerSession(socket, transceiver, handler, mode, bufSize, pwh, metrics, stripes, maxStripes);
+    }
+
     @Override
     public void close() {
         executor.shutdown();
+        if (reactor != null) reactor.close();
+        if (listings != null) listings.close();
+        tasks.shutdownNow();
+        var thread = distributor;
+        if (thread != null) thread.interrupt();
     }
 
-    private CommandHandler getHandler(Class<? extends CommandHandler> clazz, NetTransceiver transceiver) {
-        if (clazz.getSuperclass() != CommandHandler.class) return new CommandHandler(transceiver);
-        try {
-            var handler = clazz.getDeclaredConstructor().newInstance();
-            var f = handler.getClass().getSuperclass().getDeclaredField("transceiver");
-            f.setAccessible(true);
-            f.set(handler, transceiver);
-            return handler;
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException("No parameterless public constructor found");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private boolean authenticate(NetTransceiver transceiver) throws IOException {
-        if (this.pwh != null) {
-            transceiver.send("auth");
-            var ch = transceiver.receive().trim();
-            if (!BCrypt.verifyer().verify(this.pwh, ch).verified) {
-                transceiver.send("Invalid credential");
-                transceiver.close();
-                return false;
-            }
-        }
-        if (mode == SocketMode.TCP) transceiver.send("authenticated");
-        return true;
+    private record Distribution(List<Path> files, CompletableFuture<Void> done) {
     }
 
 }
@@ -4,27 +4,75 @@ import kir.util.Printer;
 import kir.util.StickyFinger;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 public final class NetTransceiver implements Closeable {
 
+    // Upper bound of a DATA frame of a file body and of a single transferTo/transferFrom call
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+    // Announced file length of a body sent in chunks because its size is not known upfront
+    private static final long STREAMED = -1;
+    // Flags leading a file header, COMPRESSED keeps the byte of the former boolean header
+    private static final int COMPRESSED = 1;
+    private static final int RESUMABLE = 2;
+    private static final int STRIPED = 4;
+    private static final int DELTA = 8;
+    // Smallest range worth a connection of its own in a striped transfer
+    private static final long STRIPE_MIN = 16L * 1024 * 1024;
+    // Suffix of a file still being received, it is renamed once complete
+    static final String PART = ".part";
+    // Suffix of a file rebuilt from a delta next to the version it replaces
+    private static final String REBUILT = ".delta";
+    // Prefix of a pipelined request and of its response, followed by the request id and a space
+    static final String TAG = "#";
+    // Prefix of a progress report sent ahead of the response of a long command, no file name holds it
+    static final String PROGRESS = "\0";
+
     private final String CREATOR = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).getCallerClass().getSimpleName();
 
     private final SocketMode mode;
+    private final TransferTuning tuning;
+    private NetSocket<?> socket;
     private int bufSize;
 
-    // TCP Socket Stream
+    // TCP socket or UDP stream, unbuffered: a frame is read without consuming anything past it
     private DataInputStream dis;
     private DataOutputStream dos;
+    private SocketChannel channel;   // Only set when the socket was opened through NIO
+    private MulticastTransfer multicast;   // Only set in MULTICAST mode
+    // Header of the frame being read, frames are only read by one thread at a time
+    private final byte[] frameHeader = new byte[Frame.HEADER_BYTES];
+
+    private ServerMetrics metrics;   // Only set on the server side
+    private ArchiveCache archives;   // Only set on the server side
+    private ListingCache listings;   // Only set on the server side
+    private ForkJoinPool tasks;   // Only set on the server side
 
-    // UDP Socket
-    private DatagramSocket ds;
-    private DatagramPacket inPkt;
-    private DatagramPacket outPkt;
+    // Responses to a tagged request, collected while it is handled
+    private StringJoiner tagged;
+
+    // Striped transfers, one range per connection: the control connection and stripes - 1 data connections
+    private int stripes = 1;
+    private StripeSource stripeSource;
 
     public NetTransceiver(NetSocket<?> socket, SocketMode mode) throws IOException {
         this(socket, mode, 2048);
@@ -33,6 +81,7 @@ public final class NetTransceiver implements Closeable {
         if (bufSize <= 0) throw new IllegalArgumentException("Buffer size must be greater than 0");
         this.mode = mode;
         this.bufSize = bufSize;
+        this.tuning = new TransferTuning(bufSize);
         this.init(socket);
     }
 
@@ -44,120 +93,888 @@ public final class NetTransceiver implements Closeable {
     }
     public void setBufferSize(int bufSize) {
         this.bufSize = bufSize;
+        tuning.setBase(bufSize);
+    }
+
+    /**
+     * Bounds of the chunks of file bodies and of the socket buffers, which are tuned from the
+     * round trips and throughput of the transfers of this session. By default chunks do not go
+     * below the buffer size and neither go above {@value TransferTuning#DEFAULT_MAX_BUFFER} bytes.
+     */
+    public void setTuning(int minBuffer, int maxBuffer) {
+        tuning.setBounds(minBuffer, maxBuffer);
+    }
+
+    TransferTuning getTuning() {
+        return tuning;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+    void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setArchiveCache(ArchiveCache archives) {
+        this.archives = archives;
+    }
+
+    ListingCache getListingCache() {
+        return listings;
+    }
+    void setListingCache(ListingCache listings) {
+        this.listings = listings;
+    }
+
+    ForkJoinPool getTaskPool() {
+        return tasks;
+    }
+    void setTaskPool(ForkJoinPool tasks) {
+        this.tasks = tasks;
+    }
+
+    /**
+     * Paces the files distributed in MULTICAST mode to {@code rate} bytes per second at most and
+     * makes each of them wait for the confirmation of {@code receivers} receivers, {@code 0}
+     * waits until the group stops asking for repairs.
+     */
+    void setMulticast(long rate, int receivers) {
+        if (multicast != null) multicast.configure(rate, receivers);
+    }
+
+    /**
+     * How long a member of a group waits for the next file in MULTICAST mode, {@code 0} waits
+     * forever.
+     */
+    void setReceiveTimeout(long millis) {
+        if (multicast != null) multicast.setReceiveTimeout(millis);
+    }
+
+    /**
+     * Collects what is sent from now on instead of sending it, until {@link #endTagged()}.
+     */
+    void beginTagged() {
+        tagged = new StringJoiner("\n");
+    }
+
+    /**
+     * @return everything sent since {@link #beginTagged()} as a single message.
+     */
+    String endTagged() {
+        var response = tagged.toString();
+        tagged = null;
+        return response;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Enables striped transfers of large files. {@code source} provides the data connections,
+     * the client opens new ones while the server claims those the client attached.
+     */
+    void setStripes(int stripes, StripeSource source) {
+        this.stripes = Math.max(1, stripes);
+        this.stripeSource = source;
     }
 
     private void init(NetSocket<?> socket) throws IOException {
+        this.socket = socket;
         if (socket instanceof TCPSocket s && mode == SocketMode.TCP) {
             this.dis = new DataInputStream(s.getSocket().getInputStream());
             this.dos = new DataOutputStream(s.getSocket().getOutputStream());
+            this.channel = s.getSocket().getChannel();
         } else if (socket instanceof UDPSocket s && mode == SocketMode.UDP) {
-            this.ds = s.getSocket();
-            this.inPkt = new DatagramPacket(new byte[bufSize], bufSize);
-            this.outPkt = new DatagramPacket(new byte[bufSize], bufSize, s.clientAddress, s.clientPort);
+            // Same frames as TCP over a reliable stream, files are sent through streams without zero-copy
+            var stream = s.getStream();
+            this.dis = new DataInputStream(stream.getInputStream());
+            this.dos = new DataOutputStream(stream.getOutputStream());
+            // Datagrams start as large as the peer receives without fragmenting on this host
+            tuning.setDatagramBounds(DatagramStream.MIN_DATAGRAM,
+                    Math.min(DatagramStream.packetSize(s.getBufferSize()), s.getUnfragmentedSize()));
+            stream.setDatagramSize(tuning.getDatagram());
+        } else if (socket instanceof GroupSocket s && mode == SocketMode.MULTICAST) {
+            this.multicast = new MulticastTransfer(s, bufSize);
         } else throw new IllegalArgumentException("Unsupported socket type or socket and mode mismatch");
-
     }
 
     public void send(String str) throws IOException {
+        if (tagged != null) {
+            tagged.add(str);
+            return;
+        }
         switch (mode) {
-            case TCP -> {
-                dos.writeUTF(str);
-                dos.flush();
-            }
-            case UDP -> {
-                var b = str.getBytes();
-                // If message length exceed buffer size then the exceeding part will be removed
-                if (b.length > bufSize) b = Arrays.copyOf(b, bufSize);
-                outPkt.setData(b);
-                ds.send(outPkt);
-                outPkt.setData(new byte[bufSize]);
-            }
-            case MULTICAST -> throw new UnsupportedOperationException("Not implemented");
+            case TCP, UDP -> writeMessage(str);
+            case MULTICAST -> throw new UnsupportedOperationException("Multicast mode only distributes files");
         }
     }
 
+    /**
+     * Reports the progress of a long command ahead of its response. Dropped for a pipelined
+     * request, which is answered as one message.
+     */
+    void progress(String str) throws IOException {
+        if (tagged == null) send(PROGRESS + str);
+    }
+
     public String receive() throws IOException {
         switch (mode) {
-            case TCP -> {
-                return dis.readUTF();
-            }
-            case UDP -> {
-                ds.receive(inPkt);
-                var receivedStr = new String(inPkt.getData()).trim();
-                inPkt.setData(new byte[bufSize]);
-                return receivedStr;
+            case TCP, UDP -> {
+                return readMessage();
             }
-            case MULTICAST -> throw new UnsupportedOperationException("Not implemented");
+            case MULTICAST -> throw new UnsupportedOperationException("Multicast mode only distributes files");
         }
         return "";
     }
 
+    // Encodes straight behind the frame header in a pooled buffer, the frame leaves in one write
+    private void writeMessage(String str) throws IOException {
+        var maxBytes = Frame.HEADER_BYTES + 3L * str.length();
+        if (maxBytes > Integer.MAX_VALUE) throw new IOException("Message too long: " + str.length() + " characters");
+        var buf = BufferPool.acquire((int) maxBytes);
+        try {
+            var length = encodeUtf8(str, buf, Frame.HEADER_BYTES) - Frame.HEADER_BYTES;
+            Frame.put(buf, Frame.MESSAGE, length);
+            dos.write(buf, 0, Frame.HEADER_BYTES + length);
+            dos.flush();
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Encodes {@code str} as UTF-8 into {@code buf} from {@code pos}, which has room for three
+     * bytes per char. Done by hand so a message needs no encoder buffers, an unpaired surrogate
+     * becomes {@code '?'} as with a replacing encoder.
+     * @return the index past the last byte written.
+     */
+    private static int encodeUtf8(String str, byte[] buf, int pos) {
+        for (int i = 0, n = str.length(); i < n; i++) {
+            var c = str.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | c >> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                buf[pos++] = (byte) (0xE0 | c >> 12);
+                buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+                var cp = Character.toCodePoint(c, str.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | cp >> 18);
+                buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                buf[pos++] = '?';
+            }
+        }
+        return pos;
+    }
+
+    private String readMessage() throws IOException {
+        var frame = Frame.read(dis, frameHeader).expect(Frame.MESSAGE);
+        frame.checkPayload();
+        var buf = BufferPool.acquire(frame.length());
+        try {
+            dis.readFully(buf, 0, frame.length());
+            return new String(buf, 0, frame.length(), StandardCharsets.UTF_8);
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    private void writeFrame(byte type, ByteBuffer payload) throws IOException {
+        Frame.write(dos, type, payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        dos.flush();
+    }
+
+    private ByteBuffer readFrame(byte type) throws IOException {
+        return Frame.read(dis, frameHeader).expect(type).payload(dis);
+    }
+
+    private void writeFlag(boolean flag) throws IOException {
+        writeFrame(Frame.CONTROL, ByteBuffer.allocate(1).put((byte) (flag ? 1 : 0)).flip());
+    }
+
+    private boolean readFlag() throws IOException {
+        return readFrame(Frame.CONTROL).get() != 0;
+    }
+
+    private void writeHeader(int flags, String name, long length, int stripeCount) throws IOException {
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) throw new IOException("File name too long: " + name);
+        var header = ByteBuffer.allocate(1 + Short.BYTES + nameBytes.length + Long.BYTES + 1)
+                .put((byte) flags)
+                .putShort((short) nameBytes.length)
+                .put(nameBytes)
+                .putLong(length);
+        if ((flags & STRIPED) != 0) header.put((byte) stripeCount);
+        writeFrame(Frame.HEADER, header.flip());
+    }
+
     public void sendFile(File file) throws IOException {
         sendFile(file, false);
     }
 
     public void sendFile(File file, boolean compressed) throws IOException {
-        if (mode != SocketMode.TCP)
-            throw new UnsupportedOperationException("Current mode does not support file transfer");
-
         var fileLength = file.length();
+        var start = System.nanoTime();
+        if (mode == SocketMode.MULTICAST) {
+            multicast.send(file.toPath(), file.getName(), compressed ? COMPRESSED : 0);
+            if (metrics != null) metrics.sent(fileLength, System.nanoTime() - start);
+            return;
+        }
+
+        var stripeCount = compressed || channel == null || stripeSource == null ? 1
+                : (int) Math.min(stripes, fileLength / STRIPE_MIN);
 
-        dos.writeBoolean(compressed);
-        dos.writeUTF(file.getName());
-        dos.writeLong(fileLength);
+        writeHeader(compressed ? COMPRESSED : stripeCount > 1 ? RESUMABLE | STRIPED : RESUMABLE,
+                file.getName(), fileLength, stripeCount);
+        long offset = compressed ? 0 : confirmOffset(file.toPath(), fileLength, start);
+
+        if (stripeCount > 1) {
+            sendStriped(file.toPath(), offset, fileLength, stripeCount);
+            sent(fileLength - offset, start);
+            return;
+        }
+
+        if (channel != null) {
+            dos.flush();
+            transferTo(file.toPath(), offset, fileLength);
+            sent(fileLength - offset, start);
+            return;
+        }
 
         int data;
-        long bytesWritten = 0;
-        byte[] buffer = new byte[bufSize];
-        var fis = new BufferedInputStream(new FileInputStream(file));
-        while ((data = fis.read(buffer)) != -1) {
-            dos.write(buffer, 0, data);
-            bytesWritten += data;
-            if (CREATOR.equals("NetClient")) Printer.progress(bytesWritten, fileLength);
+        long bytesWritten = offset;
+        var chunk = tuning.getChunk();
+        byte[] buffer = BufferPool.acquire(chunk);
+        try (var fis = new FileInputStream(file); var cos = new ChunkedOutputStream(dos, chunk)) {
+            fis.getChannel().position(offset);
+            while (bytesWritten < fileLength && (data = fis.read(buffer, 0, (int) Math.min(chunk, fileLength - bytesWritten))) != -1) {
+                cos.write(buffer, 0, data);
+                bytesWritten += data;
+                if (CREATOR.equals("NetClient")) Printer.progress(bytesWritten, fileLength);
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
+        sent(bytesWritten - offset, start);
+    }
 
-        dos.flush();
-        fis.close();
+    /**
+     * Sends only what differs from the copy of {@code file} the receiver already has. The
+     * receiver answers with block checksums of its copy, blocks found in {@code file} are sent
+     * as references and the rest as literal bytes. Without a usable copy on the other side, or
+     * if the rebuilt file fails verification, the whole file is sent instead.
+     */
+    public void sendFileDelta(File file) throws IOException {
+        if (mode == SocketMode.MULTICAST)
+            throw new UnsupportedOperationException("Current mode does not support delta transfer");
+
+        var start = System.nanoTime();
+        writeHeader(DELTA, file.getName(), file.length(), 1);
+
+        DeltaTransfer.Signature signature;
+        try (var cis = new ChunkedInputStream(dis)) {
+            signature = DeltaTransfer.Signature.read(new DataInputStream(new BufferedInputStream(cis)));
+        }
+        if (signature.getBlockCount() == 0) {
+            writeFlag(false);
+            sendFile(file);
+            return;
+        }
+        writeFlag(true);
+
+        long literal;
+        var cos = new ChunkedOutputStream(dos, tuning.getChunk());
+        try (cos) {
+            literal = DeltaTransfer.encode(file.toPath(), signature, cos);
+        }
+        if (!readFlag()) {
+            if (CREATOR.equals("NetClient")) Printer.warning("Delta did not verify on the receiver, sending the whole file");
+            sendFile(file);
+            return;
+        }
+        sent(cos.getBytesWritten(), start);
+        if (CREATOR.equals("NetClient"))
+            Printer.info(String.format("Delta: %d of %d bytes sent as literal data", literal, file.length()));
+    }
+
+    /**
+     * Sender side of a resumed transfer: the receiver announces how many bytes it already holds
+     * together with their CRC32C, the offset is confirmed only if the local prefix matches.
+     */
+    private long confirmOffset(Path file, long fileLength, long headerSent) throws IOException {
+        var request = readFrame(Frame.CONTROL);
+        var offset = request.getLong();
+        // The request answers the header, unless the receiver first had a partial file to check
+        if (offset == 0) tuning.rtt(System.nanoTime() - headerSent);
+        var crc = request.getInt();
+        if (offset > 0 && (offset > fileLength || crc32c(file, offset) != crc)) offset = 0;
+        writeFrame(Frame.CONTROL, ByteBuffer.allocate(Long.BYTES).putLong(offset).flip());
+        return offset;
+    }
+
+    /**
+     * Receiver side of a resumed transfer, answers with the length and CRC32C of the partial
+     * file left by an earlier attempt and returns the offset the sender agreed to resume from.
+     */
+    private long requestOffset(Path part, long fileLength) throws IOException {
+        long offset = Files.exists(part) ? Files.size(part) : 0;
+        if (offset > fileLength) offset = 0;
+        var crc = offset > 0 ? crc32c(part, offset) : 0;
+        var asked = System.nanoTime();
+        writeFrame(Frame.CONTROL, ByteBuffer.allocate(Long.BYTES + Integer.BYTES)
+                .putLong(offset)
+                .putInt(crc)
+                .flip());
+        var confirmed = readFrame(Frame.CONTROL).getLong();
+        // The answer is immediate, unless the sender first had a prefix to check
+        if (offset == 0) tuning.rtt(System.nanoTime() - asked);
+        return confirmed;
+    }
+
+    static int crc32c(Path file, long length) throws IOException {
+        var crc = new CRC32C();
+        var buffer = ByteBuffer.allocate(1024 * 1024);
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                var n = fc.read(buffer, position);
+                if (n == -1) throw new EOFException("File shorter than " + length + " bytes: " + file);
+                crc.update(buffer.flip());
+                position += n;
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Sends {@code src} as a zip archive that is built while it is written to the socket,
+     * no temporary file is created and the first bytes leave as soon as the walk starts.
+     * A multicast group may ask for any chunk again, there the archive is built first.
+     */
+    public void sendArchive(List<Path> src) throws IOException {
+        if (mode == SocketMode.MULTICAST) {
+            var archive = Files.createTempFile("multicast", ".zip");
+            try {
+                try (var out = new BufferedOutputStream(Files.newOutputStream(archive))) {
+                    zip(out, src);
+                }
+                var start = System.nanoTime();
+                multicast.send(archive, UUID.randomUUID() + ".zip", COMPRESSED);
+                if (metrics != null) metrics.sent(Files.size(archive), System.nanoTime() - start);
+            } finally {
+                Files.deleteIfExists(archive);
+            }
+            return;
+        }
+
+        if (archives != null) archives.send(this, src, metrics);
+        else streamArchive(src, null);
+    }
+
+    /**
+     * Streams a freshly built archive of {@code src}, also writing it to {@code copy} if given.
+     * The copy is completed even if the peer goes away, which is then reported as a
+     * {@link PeerException} once the archive is done. A copy that fails is dropped and the
+     * archive is still streamed to the peer. An archive that cannot be built is aborted, the
+     * peer fails instead of keeping a partial tree and this throws an {@link AbortedException}.
+     * @return whether the copy is complete.
+     */
+    boolean streamArchive(List<Path> src, OutputStream copy) throws IOException {
+        var start = System.nanoTime();
+        writeHeader(COMPRESSED, UUID.randomUUID() + ".zip", STREAMED, 1);
+
+        var cos = new ChunkedOutputStream(dos, tuning.getChunk());
+        if (copy == null) {
+            try {
+                zip(cos, src);
+            } catch (IOException | RuntimeException e) {
+                throw abort(cos, e);
+            }
+            cos.close();
+            sent(cos.getBytesWritten(), start);
+            return false;
+        }
+        var tee = new TeeOutputStream(cos, copy);
+        try {
+            zip(tee, src);
+        } catch (IOException | RuntimeException e) {
+            throw abort(cos, e);
+        }
+        if (tee.failure != null) throw new PeerException(tee.failure);
+        try {
+            cos.close();
+        } catch (IOException e) {
+            if (tee.copy == null) throw e;
+            throw new PeerException(e);
+        }
+        sent(cos.getBytesWritten(), start);
+        return tee.copy != null;
+    }
+
+    // Tells the peer why the body ends early, a peer that cannot be told is gone and e is thrown as is
+    private static IOException abort(ChunkedOutputStream cos, Exception e) {
+        try {
+            cos.abort(e.toString());
+        } catch (IOException ex) {
+            e.addSuppressed(ex);
+            return e instanceof IOException io ? io : new IOException(e);
+        }
+        return new AbortedException(e.toString(), e);
+    }
+
+    // On the pool of the server when there is one, a client shares the default pool of StickyFinger
+    private void zip(OutputStream out, List<Path> src) throws IOException {
+        var files = src.toArray(Path[]::new);
+        if (tasks != null) StickyFinger.zip(out, Deflater.NO_COMPRESSION, tasks, files);
+        else StickyFinger.zip(out, files);
+    }
+
+    // Every finished transfer is recorded by the server and tunes the transfers that follow
+    private void sent(long bytes, long start) throws IOException {
+        var nanos = System.nanoTime() - start;
+        if (metrics != null) metrics.sent(bytes, nanos);
+        tune(bytes, nanos);
+    }
+
+    private void received(long bytes, long start) throws IOException {
+        var nanos = System.nanoTime() - start;
+        if (metrics != null) metrics.received(bytes, nanos);
+        tune(bytes, nanos);
+    }
+
+    private void tune(long bytes, long nanos) throws IOException {
+        if (socket instanceof UDPSocket s) {
+            var stream = s.getStream();
+            tuning.rtt(stream.getRtt());
+            tuning.datagrams(stream.getTransmitted(), stream.getLosses());
+            tuning.transferred(bytes, nanos);
+            stream.setDatagramSize(tuning.getDatagram());
+        } else if (socket instanceof TCPSocket s) {
+            tuning.transferred(bytes, nanos);
+            // Only ever raised, a buffer the system grew on its own is left alone
+            var size = tuning.getSocketBuffer();
+            var tcp = s.getSocket();
+            if (size > tcp.getSendBufferSize()) tcp.setSendBufferSize(size);
+            if (size > tcp.getReceiveBufferSize()) tcp.setReceiveBufferSize(size);
+        }
+    }
+
+    private void transferTo(Path file, long offset, long fileLength) throws IOException {
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            sendRange(fc, channel, offset, fileLength, new AtomicLong(offset), fileLength, true);
+        }
     }
 
     public Path receiveFile(Path outputPath) throws IOException {
-        if (mode != SocketMode.TCP)
-            throw new UnsupportedOperationException("Current mode does not support file transfer");
+        if (mode == SocketMode.MULTICAST) return receiveDistributed(outputPath);
 
-        var compressed = dis.readBoolean();
-        var fileName = dis.readUTF();
-        var fileLength = dis.readLong();
+        var header = readFrame(Frame.HEADER);
+        var start = System.nanoTime();
+        var flags = header.get();
+        var compressed = (flags & COMPRESSED) != 0;
+        var name = new byte[header.getShort() & 0xFFFF];
+        header.get(name);
+        var fileName = new String(name, StandardCharsets.UTF_8);
+        var fileLength = header.getLong();
+        var stripeCount = (flags & STRIPED) != 0 ? header.get() & 0xFF : 1;
         var outPath = outputPath.resolve(fileName);
 
-        int data;
-        long bytesRead = 0;
-        byte[] buffer = new byte[bufSize];
-        var fos = new BufferedOutputStream(new FileOutputStream(outPath.toFile()));
-        while (bytesRead < fileLength && (data = dis.read(buffer, 0, (int) Math.min(buffer.length, fileLength - bytesRead))) != -1) {
-            fos.write(buffer, 0, data);
-            bytesRead += data;
-            if (CREATOR.equals("NetClient")) Printer.progress(bytesRead, fileLength);
+        if ((flags & DELTA) != 0) return receiveDelta(outPath, outputPath, start);
+        // Archives are extracted while they arrive, whether their length is known or not
+        if (fileLength == STREAMED || compressed) return receiveStream(outPath, outputPath, compressed, start);
+
+        // Resumable bodies are written to a part file that survives a dropped connection
+        var resumable = (flags & RESUMABLE) != 0;
+        var target = resumable ? outputPath.resolve(fileName + PART) : outPath;
+        long offset = resumable ? requestOffset(target, fileLength) : 0;
+
+        if (stripeCount > 1) {
+            receiveStriped(target, offset, fileLength, stripeCount);
+        } else if (channel != null) {
+            transferFrom(target, offset, fileLength);
+        } else {
+            int data;
+            long bytesRead = offset;
+            var chunk = tuning.getChunk();
+            byte[] buffer = BufferPool.acquire(chunk);
+            try (var cis = new ChunkedInputStream(dis); var fos = new FileOutputStream(target.toFile(), offset > 0)) {
+                while ((data = cis.read(buffer, 0, chunk)) != -1) {
+                    fos.write(buffer, 0, data);
+                    bytesRead += data;
+                    if (CREATOR.equals("NetClient")) Printer.progress(bytesRead, fileLength);
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            if (bytesRead != fileLength)
+                throw new EOFException("Body ended after " + bytesRead + " of " + fileLength + " bytes");
+        }
+        if (resumable) Files.move(target, outPath, StandardCopyOption.REPLACE_EXISTING);
+        received(fileLength - offset, start);
+
+        return outPath;
+    }
+
+    /**
+     * Waits for the next file distributed to the group, an archive is extracted once complete.
+     */
+    private Path receiveDistributed(Path outputPath) throws IOException {
+        var incoming = multicast.receive(outputPath);
+        if ((incoming.flags & COMPRESSED) != 0) {
+            try {
+                StickyFinger.unzip(incoming.part, outputPath);
+            } finally {
+                Files.deleteIfExists(incoming.part);
+            }
+            return outputPath;
         }
-        fos.flush();
-        fos.close();
+        var outPath = outputPath.resolve(incoming.name);
+        Files.move(incoming.part, outPath, StandardCopyOption.REPLACE_EXISTING);
+        return outPath;
+    }
 
-        if (compressed) {
-            StickyFinger.unzip(outPath, outputPath);
-            Files.delete(outPath);
-            return outPath.getParent();
+    /**
+     * Receiver side of {@link #sendFileDelta(File)}, the new version is built next to the
+     * current one and only replaces it once its checksum matches.
+     */
+    private Path receiveDelta(Path outPath, Path outputPath, long start) throws IOException {
+        var signature = DeltaTransfer.Signature.of(outPath);
+        try (var cos = new ChunkedOutputStream(dos, tuning.getChunk())) {
+            var out = new DataOutputStream(cos);
+            signature.write(out);
+            out.flush();
         }
+        // Nothing to reuse, a regular transfer follows
+        if (!readFlag()) return receiveFile(outputPath);
 
+        var rebuilt = outputPath.resolve(outPath.getFileName() + REBUILT);
+        boolean verified;
+        var cis = new ChunkedInputStream(dis);
+        try (cis) {
+            verified = DeltaTransfer.apply(outPath, signature, new BufferedInputStream(cis), rebuilt);
+        } catch (IOException e) {
+            Files.deleteIfExists(rebuilt);
+            throw e;
+        }
+        writeFlag(verified);
+        if (!verified) {
+            Files.deleteIfExists(rebuilt);
+            return receiveFile(outputPath);
+        }
+        Files.move(rebuilt, outPath, StandardCopyOption.REPLACE_EXISTING);
+        received(cis.getBytesRead(), start);
         return outPath;
     }
 
+    /**
+     * Receives a body of DATA frames, an archive is extracted while it arrives instead of
+     * being stored first, so peak disk usage is the extracted size.
+     */
+    private Path receiveStream(Path outPath, Path outputPath, boolean compressed, long start) throws IOException {
+        var cis = new ChunkedInputStream(dis);
+        try (cis) {
+            if (compressed) {
+                StickyFinger.unzip(cis, outputPath);
+                if (CREATOR.equals("NetClient")) Printer.progress(cis.getBytesRead(), cis.getBytesRead());
+            } else {
+                Files.copy(cis, outPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        received(cis.getBytesRead(), start);
+        return compressed ? outputPath : outPath;
+    }
+
+    private void transferFrom(Path outPath, long offset, long fileLength) throws IOException {
+        try (var raf = new RandomAccessFile(outPath.toFile(), "rw")) {
+            raf.setLength(fileLength);  // Preallocate the announced length
+            var received = new AtomicLongArray(1);
+            try {
+                receiveRange(raf.getChannel(), channel, offset, fileLength, received, 0, new AtomicLong(offset), fileLength, true);
+            } finally {
+                // Drop the preallocated tail so the length of a part file is what actually arrived
+                var bytesRead = offset + received.get(0);
+                if (bytesRead < fileLength) raf.setLength(bytesRead);
+            }
+        }
+    }
+
+    /**
+     * Sends {@code [offset, fileLength)} split in equal ranges, the first one on the control
+     * connection and each other one on a data connection announcing its range index.
+     */
+    private void sendStriped(Path file, long offset, long fileLength, int stripeCount) throws IOException {
+        var bounds = stripeBounds(offset, fileLength, stripeCount);
+        var total = new AtomicLong(offset);
+        var pool = Executors.newFixedThreadPool(stripeCount - 1);
+        var connections = new ArrayList<SocketChannel>();
+        var futures = new ArrayList<Future<?>>();
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            try {
+                for (var i = 1; i < stripeCount; i++) {
+                    var data = stripeSource.open();
+                    connections.add(data);
+                    var index = i;
+                    futures.add(pool.submit(() -> {
+                        writeFully(data, Frame.header(Frame.CONTROL, Integer.BYTES));
+                        writeFully(data, ByteBuffer.allocate(Integer.BYTES).putInt(index).flip());
+                        sendRange(fc, data, bounds[index], bounds[index + 1], total, fileLength, false);
+                        return null;
+                    }));
+                }
+                sendRange(fc, channel, bounds[0], bounds[1], total, fileLength, true);
+                awaitStripes(futures);
+            } finally {
+                closeStripes(connections, futures);
+                pool.shutdown();
+            }
+        }
+        if (CREATOR.equals("NetClient")) Printer.progress(fileLength, fileLength);
+    }
+
+    /**
+     * Receives a striped body with positional writes. On failure the part file is cut back
+     * to the longest prefix that arrived completely, so a retry resumes from there.
+     */
+    private void receiveStriped(Path part, long offset, long fileLength, int stripeCount) throws IOException {
+        if (channel == null || stripeSource == null)
+            throw new IOException("Striped transfer requested but no data connection is available");
+        var bounds = stripeBounds(offset, fileLength, stripeCount);
+        var received = new AtomicLongArray(stripeCount);
+        var total = new AtomicLong(offset);
+        var pool = Executors.newFixedThreadPool(stripeCount - 1);
+        var connections = new ArrayList<SocketChannel>();
+        var futures = new ArrayList<Future<?>>();
+        try (var raf = new RandomAccessFile(part.toFile(), "rw")) {
+            raf.setLength(fileLength);  // Preallocate the announced length
+            var fc = raf.getChannel();
+            try {
+                for (var i = 1; i < stripeCount; i++) {
+                    var data = stripeSource.open();
+                    connections.add(data);
+                    futures.add(pool.submit(() -> {
+                        var index = Frame.read(data).expect(Frame.CONTROL).payload(data).getInt();
+                        if (index <= 0 || index >= stripeCount) throw new IOException("Invalid stripe index " + index);
+                        receiveRange(fc, data, bounds[index], bounds[index + 1], received, index, total, fileLength, false);
+                        return null;
+                    }));
+                }
+                receiveRange(fc, channel, bounds[0], bounds[1], received, 0, total, fileLength, true);
+                awaitStripes(futures);
+            } finally {
+                closeStripes(connections, futures);
+                pool.shutdown();
+                long contiguous = fileLength;
+                for (var i = 0; i < stripeCount; i++) {
+                    if (bounds[i] + received.get(i) < bounds[i + 1]) {
+                        contiguous = bounds[i] + received.get(i);
+                        break;
+                    }
+                }
+                if (contiguous < fileLength) raf.setLength(contiguous);
+            }
+        }
+        if (CREATOR.equals("NetClient")) Printer.progress(fileLength, fileLength);
+    }
+
+    /**
+     * Sends {@code [from, to)} of the file as DATA frames followed by END, the payload of each
+     * frame goes from the file to the socket with zero-copy.
+     */
+    private void sendRange(FileChannel fc, SocketChannel out, long from, long to, AtomicLong total, long fileLength, boolean progress) throws IOException {
+        var position = from;
+        while (position < to) {
+            var end = position + Math.min(TRANSFER_CHUNK, to - position);
+            writeFully(out, Frame.header(Frame.DATA, (int) (end - position)));
+            while (position < end) {
+                var n = fc.transferTo(position, end - position, out);
+                if (n == 0 && position >= fc.size()) throw new EOFException("File truncated during transfer");
+                position += n;
+                var sent = total.addAndGet(n);
+                if (progress && CREATOR.equals("NetClient")) Printer.progress(sent, fileLength);
+            }
+        }
+        writeFully(out, Frame.header(Frame.END, 0));
+    }
+
+    private void receiveRange(FileChannel fc, SocketChannel in, long from, long to, AtomicLongArray received, int index,
+                              AtomicLong total, long fileLength, boolean progress) throws IOException {
+        var position = from;
+        Frame frame;
+        while ((frame = Frame.read(in)).type() != Frame.END) {
+            var end = position + frame.expect(Frame.DATA).length();
+            if (end > to) throw new IOException("Stripe " + index + " exceeds its range");
+            while (position < end) {
+                // Never asks for more than the frame holds, nothing past it is consumed
+                var n = fc.transferFrom(in, position, end - position);
+                if (n == 0) throw new EOFException("Connection closed after " + (position - from) + " of " + (to - from) + " bytes of stripe " + index);
+                position += n;
+                received.addAndGet(index, n);
+                var sum = total.addAndGet(n);
+                if (progress && CREATOR.equals("NetClient") && sum < fileLength) Printer.progress(sum, fileLength);
+            }
+        }
+        if (position < to) throw new EOFException("Stripe " + index + " ended after " + (position - from) + " of " + (to - from) + " bytes");
+    }
+
+    private static long[] stripeBounds(long offset, long fileLength, int stripeCount) {
+        var bounds = new long[stripeCount + 1];
+        var span = (fileLength - offset) / stripeCount;
+        for (var i = 0; i < stripeCount; i++) bounds[i] = offset + i * span;
+        bounds[stripeCount] = fileLength;
+        return bounds;
+    }
+
+    private static void awaitStripes(List<Future<?>> futures) throws IOException {
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during striped transfer");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                throw new IOException("Stripe failed", e.getCause());
+            }
+        }
+    }
+
+    // Closing the data connections unblocks stripes still running after a failure
+    private static void closeStripes(List<SocketChannel> connections, List<Future<?>> futures) {
+        for (var data : connections) try { data.close(); } catch (IOException ignored) {}
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ignored) {
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel ch, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) ch.write(buffer);
+    }
+
     @Override
     public void close() {
-        // UDP
-        if (ds != null) ds.close();
-
-        // TCP
         if (dis != null) try { dis.close(); } catch (IOException ignored) {}
         if (dos != null) try { dos.close(); } catch (IOException ignored) {}
+        if (multicast != null) multicast.close();
+    }
+
+    /**
+     * The connection failed while a local copy of the data was still being written.
+     */
+    static final class PeerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PeerException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * A body ended early by its sender, which could not complete it. The connection is still usable.
+     */
+    static final class AbortedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        AbortedException(String reason) {
+            super(reason);
+        }
+
+        AbortedException(String reason, Throwable cause) {
+            super(reason, cause);
+        }
+    }
+
+    /**
+     * Writes to the peer and to a copy, after the peer fails only the copy is written and after
+     * the copy fails only the peer. Fails once neither is left.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+
+        private final OutputStream peer;
+        private OutputStream copy;   // null once dropped
+        private IOException failure;
+
+        TeeOutputStream(OutputStream peer, OutputStream copy) {
+            this.peer = peer;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (copy != null) {
+                try {
+                    copy.write(b, off, len);
+                } catch (IOException e) {
+                    drop();
+                }
+            }
+            if (failure != null) return;
+            try {
+                peer.write(b, off, len);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (copy != null) {
+                try {
+                    copy.flush();
+                } catch (IOException e) {
+                    drop();
+                }
+            }
+            if (failure != null) return;
+            try {
+                peer.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void drop() throws IOException {
+            copy = null;
+            if (failure != null) throw failure;
+        }
+
+        private void fail(IOException e) throws IOException {
+            failure = e;
+            if (copy == null) throw e;
+        }
+
+    }
+
+    /**
+     * Provides the data connections of a striped transfer.
+     */
+    @FunctionalInterface
+    interface StripeSource {
+        SocketChannel open() throws IOException;
     }
 
 }
@@ -0,0 +1,196 @@
+package kir.util.net;
+
+import kir.util.Printer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based TCP engine. Idle sessions only cost a selection key: when a client sends
+ * something, its channel is taken off the selector, switched to blocking mode and handed to
+ * a fixed worker pool which runs exactly one {@link ServerSession#step()} before parking the
+ * channel again. File transfers keep using the blocking streams of {@link NetTransceiver}.
+ * A striped transfer waiting for its data connections lends its worker to the pool, which
+ * starts a spare meanwhile: those connections need a worker to greet and attach them.
+ */
+final class Reactor implements Closeable {
+
+    interface SessionFactory {
+        ServerSession create(SocketChannel channel) throws IOException;
+    }
+
+    private final int port;
+    private final int acceptors;
+    private final SessionFactory factory;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final List<ServerSocketChannel> channels;
+    private final AtomicInteger next;
+
+    Reactor(int port, int eventLoops, int acceptors, int workers, SessionFactory factory) throws IOException {
+        if (eventLoops <= 0 || acceptors <= 0 || workers <= 0)
+            throw new IllegalArgumentException("Reactor thread counts must be greater than 0");
+        this.port = port;
+        this.acceptors = acceptors;
+        this.factory = factory;
+        this.loops = new EventLoop[eventLoops];
+        for (var i = 0; i < eventLoops; i++) loops[i] = new EventLoop();
+        // Served in arrival order, a worker blocked in StripeRegistry.take is compensated
+        this.workers = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.channels = new ArrayList<>();
+        this.next = new AtomicInteger();
+    }
+
+    /**
+     * Starts the event loops and blocks the calling thread accepting connections.
+     */
+    void run() throws IOException {
+        var first = ServerSocketChannel.open();
+        channels.add(first);
+        var reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (acceptors > 1 && !reusePort)
+            Printer.warning("[SYSTEM/TCP] SO_REUSEPORT is not supported, falling back to a single acceptor");
+        for (var i = 1; reusePort && i < acceptors; i++) channels.add(ServerSocketChannel.open());
+        for (var ssc : channels) {
+            if (reusePort) ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ssc.bind(new InetSocketAddress(port));
+        }
+
+        for (var i = 0; i < loops.length; i++) {
+            var t = new Thread(loops[i], "reactor-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        for (var i = 1; i < channels.size(); i++) {
+            var ssc = channels.get(i);
+            var t = new Thread(() -> accept(ssc), "reactor-acceptor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        accept(channels.get(0));
+    }
+
+    private void accept(ServerSocketChannel ssc) {
+        while (ssc.isOpen()) {
+            try {
+                var ch = ssc.accept();
+                workers.execute(() -> open(ch));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void open(SocketChannel ch) {
+        ServerSession session = null;
+        try {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            session = factory.create(ch);
+            session.greet();
+            park(ch, session);
+        } catch (IOException e) {
+            if (session != null) session.close();
+            else try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void serve(SocketChannel ch, ServerSession session) {
+        try {
+            ch.configureBlocking(true);
+            if (session.step()) {
+                park(ch, session);
+                return;
+            }
+        } catch (IOException ignored) {
+        }
+        session.close();
+    }
+
+    private void park(SocketChannel ch, ServerSession session) throws IOException {
+        ch.configureBlocking(false);
+        loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(ch, session);
+    }
+
+    @Override
+    public void close() {
+        for (var ssc : channels) try { ssc.close(); } catch (IOException ignored) {}
+        for (var loop : loops) loop.close();
+        workers.shutdown();
+    }
+
+    private final class EventLoop implements Runnable, Closeable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+        }
+
+        void register(SocketChannel ch, ServerSession session) {
+            tasks.add(() -> {
+                try {
+                    ch.register(selector, SelectionKey.OP_READ, session);
+                } catch (IOException e) {
+                    session.close();
+                }
+            });
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            var ready = new ArrayList<SelectionKey>();
+            try {
+                while (selector.isOpen()) {
+                    // Keys cancelled on the previous pass are deregistered by this select,
+                    // only then may their channels be switched back to blocking mode.
+                    selector.select();
+                    for (var key : ready)
+                        workers.execute(() -> serve((SocketChannel) key.channel(), (ServerSession) key.attachment()));
+                    ready.clear();
+
+                    var keys = selector.selectedKeys();
+                    for (var key : keys) {
+                        key.cancel();
+                        ready.add(key);
+                    }
+                    keys.clear();
+                    if (!ready.isEmpty()) selector.wakeup();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                }
+            } catch (IOException | ClosedSelectorException ignored) {
+            }
+        }
+
+        @Override
+        public void close() {
+            tasks.add(() -> {
+                for (var key : selector.keys()) ((ServerSession) key.attachment()).close();
+                try { selector.close(); } catch (IOException ignored) {}
+            });
+            selector.wakeup();
+        }
+
+    }
+
+}
@@ -0,0 +1,8 @@
+package kir.util.net;
+
+public enum ServerEngine {
+    /** One executor task per session, blocked on the socket while the client is idle. */
+    BLOCKING,
+    /** Idle sessions are parked on selector event loops, a fixed worker pool runs the commands. */
+    REACTOR,
+}
@@ -0,0 +1,149 @@
+package kir.util.net;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of a {@link NetServer}: latency per {@link Handler} command, file transfers
+ * in each direction, sessions and authentication. Counters are striped {@link LongAdder}s and
+ * durations go to {@link LatencyHistogram}s, so recording stays cheap on the hot path.
+ */
+public final class ServerMetrics {
+
+    private final Map<String, LatencyHistogram> commands;
+    private final Transfers sent;
+    private final Transfers received;
+    private final LongAdder activeSessions;
+    private final LongAdder totalSessions;
+    private final LatencyHistogram auth;
+    private final LongAdder authFailures;
+    private final LongAdder archiveHits;
+    private final LongAdder archiveMisses;
+
+    ServerMetrics() {
+        this.commands = new ConcurrentHashMap<>();
+        this.sent = new Transfers();
+        this.received = new Transfers();
+        this.activeSessions = new LongAdder();
+        this.totalSessions = new LongAdder();
+        this.auth = new LatencyHistogram();
+        this.authFailures = new LongAdder();
+        this.archiveHits = new LongAdder();
+        this.archiveMisses = new LongAdder();
+    }
+
+    void command(String name, long nanos) {
+        commands.computeIfAbsent(name, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    void sent(long bytes, long nanos) {
+        sent.record(bytes, nanos);
+    }
+
+    void received(long bytes, long nanos) {
+        received.record(bytes, nanos);
+    }
+
+    void sessionOpened() {
+        activeSessions.increment();
+        totalSessions.increment();
+    }
+
+    void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    // A connection turned into a data connection of another session after all
+    void sessionDetached() {
+        activeSessions.decrement();
+        totalSessions.decrement();
+    }
+
+    void authenticated(long nanos, boolean verified) {
+        auth.record(nanos);
+        if (!verified) authFailures.increment();
+    }
+
+    void archiveHit() {
+        archiveHits.increment();
+    }
+
+    void archiveMiss() {
+        archiveMisses.increment();
+    }
+
+    public Snapshot snapshot() {
+        var cmds = new TreeMap<String, LatencyHistogram.Snapshot>();
+        commands.forEach((name, histogram) -> cmds.put(name, histogram.snapshot()));
+        return new Snapshot(activeSessions.sum(), totalSessions.sum(), auth.snapshot(), authFailures.sum(),
+                cmds, sent.snapshot(), received.snapshot(), archiveHits.sum(), archiveMisses.sum());
+    }
+
+    /**
+     * Point in time view of the server metrics, durations are in nanoseconds.
+     */
+    public record Snapshot(long activeSessions, long totalSessions, LatencyHistogram.Snapshot auth, long authFailures,
+                           Map<String, LatencyHistogram.Snapshot> commands,
+                           TransferSnapshot sent, TransferSnapshot received, long archiveHits, long archiveMisses) {
+
+        public Snapshot {
+            commands = Map.copyOf(commands);
+        }
+
+        /**
+         * Renders the snapshot as the table answered to the {@code stats} command.
+         */
+        public String format() {
+            var sb = new StringBuilder();
+            sb.append(String.format("Sessions: %d active, %d total%n", activeSessions, totalSessions));
+            sb.append(String.format("Auth: %d attempts, %d failed, p50 %s, p99 %s%n",
+                    auth.count(), authFailures, millis(auth.p50()), millis(auth.p99())));
+            sb.append(String.format("%-12s%10s%12s%12s%12s%12s%12s%n", "command", "count", "mean", "p50", "p99", "p99.9", "max"));
+            new TreeMap<>(commands).forEach((name, h) -> sb.append(String.format("%-12s%10d%12s%12s%12s%12s%12s%n",
+                    name, h.count(), millis(h.mean()), millis(h.p50()), millis(h.p99()), millis(h.p999()), millis(h.max()))));
+            sb.append(sent.format("Sent")).append(received.format("Received"));
+            sb.append(String.format("Archive cache: %d hits, %d misses%n", archiveHits, archiveMisses));
+            return sb.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3fms", nanos / 1e6);
+        }
+    }
+
+    /**
+     * Totals of the file transfers in one direction, {@code duration} holds one sample per file.
+     */
+    public record TransferSnapshot(long files, long bytes, long nanos, LatencyHistogram.Snapshot duration) {
+
+        public double bytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+
+        private String format(String label) {
+            return String.format("%s: %d files, %d bytes, %.1f MB/s, p50 %s, p99 %s%n", label, files, bytes,
+                    bytesPerSecond() / (1024 * 1024), Snapshot.millis(duration.p50()), Snapshot.millis(duration.p99()));
+        }
+    }
+
+    private static final class Transfers {
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LatencyHistogram duration = new LatencyHistogram();
+
+        void record(long bytes, long nanos) {
+            this.files.increment();
+            this.bytes.add(bytes);
+            this.nanos.add(nanos);
+            this.duration.record(nanos);
+        }
+
+        TransferSnapshot snapshot() {
+            return new TransferSnapshot(files.sum(), bytes.sum(), nanos.sum(), duration.snapshot());
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package kir.util.net;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import kir.util.ConsoleColors;
+import kir.util.Printer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * One client session on a {@link NetServer}, driven one message at a time so that
+ * both the thread-per-session and the reactor engine can share the same protocol code.
+ */
+final class ServerSession implements Closeable {
+
+    // Session level messages, handled before the command handler
+    private static final String ATTACH = "attach ";
+    private static final String STRIPES = "stripes ";
+
+    private final NetSocket<?> socket;
+    private final NetTransceiver transceiver;
+    private final CommandHandler handler;
+    private final SocketMode mode;
+    private final int bufSize;
+    private final char[] pwh;
+    private final ServerMetrics metrics;
+    private final StripeRegistry stripes;
+    private final int maxStripes;
+    private boolean authenticated;
+    private boolean detached;
+    private String token;
+
+    ServerSession(NetSocket<?> socket, NetTransceiver transceiver, CommandHandler handler,
+                  SocketMode mode, int bufSize, char[] pwh, ServerMetrics metrics,
+                  StripeRegistry stripes, int maxStripes) {
+        this.socket = socket;
+        this.transceiver = transceiver;
+        this.handler = handler;
+        this.mode = mode;
+        this.bufSize = bufSize;
+        this.pwh = pwh;
+        this.metrics = metrics;
+        this.stripes = stripes;
+        this.maxStripes = maxStripes;
+        this.authenticated = false;
+        this.detached = false;
+    }
+
+    /**
+     * Sends the opening handshake. Password protected servers ask for a credential and
+     * wait for the next message, others are accepted right away.
+     */
+    void greet() throws IOException {
+        if (pwh != null) {
+            transceiver.send("auth");
+            return;
+        }
+        accept();
+    }
+
+    /**
+     * Reads and processes a single message from the client.
+     *
+     * @return {@code false} once the session is over and should be closed.
+     */
+    boolean step() throws IOException {
+        var msg = transceiver.receive();
+        if (msg.startsWith(ATTACH)) return attach(msg.substring(ATTACH.length()).trim());
+        if (!authenticated) {
+            var start = System.nanoTime();
+            var verified = BCrypt.verifyer().verify(pwh, msg.trim()).verified;
+            metrics.authenticated(System.nanoTime() - start, verified);
+            if (!verified) {
+                transceiver.send("Invalid credential");
+                transceiver.close();
+                return false;
+            }
+            accept();
+            return true;
+        }
+        if (msg.startsWith(NetTransceiver.TAG)) return tagged(msg);
+        if (msg.startsWith(STRIPES) && token != null) {
+            try {
+                var requested = Integer.parseInt(msg.substring(STRIPES.length()).trim());
+                var session = token;
+                transceiver.setStripes(Math.min(requested, maxStripes), () -> stripes.take(session));
+                return true;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        handler.handle(msg);
+        return !socket.isClosed();
+    }
+
+    /**
+     * Handles a request of a pipelining client. Whatever the command sends is answered as one
+     * message carrying the same tag, requests are handled in the order they arrive.
+     */
+    private boolean tagged(String msg) throws IOException {
+        var space = msg.indexOf(' ');
+        if (space < 0) {
+            handler.handle(msg);
+            return !socket.isClosed();
+        }
+        String response;
+        transceiver.beginTagged();
+        try {
+            handler.handle(msg.substring(space + 1));
+        } finally {
+            response = transceiver.endTagged();
+        }
+        if (socket.isClosed()) return false;
+        transceiver.send(msg.substring(0, space + 1) + response);
+        return true;
+    }
+
+    /**
+     * Hands this connection over to the session owning {@code token} as a data connection of
+     * its striped transfers. The connection stops being a session of its own.
+     */
+    private boolean attach(String token) throws IOException {
+        var ch = socket instanceof TCPSocket s ? s.getSocket().getChannel() : null;
+        if (ch == null || !stripes.contains(token)) {
+            transceiver.send("Invalid token");
+            return false;
+        }
+        transceiver.send("attached");
+        if (authenticated) {
+            authenticated = false;
+            metrics.sessionDetached();
+            stripes.unregister(this.token);
+            this.token = null;
+        }
+        detached = stripes.offer(token, ch);
+        return false;
+    }
+
+    private void accept() throws IOException {
+        authenticated = true;
+        metrics.sessionOpened();
+        transceiver.send("authenticated");
+        if (mode == SocketMode.TCP) {
+            token = stripes.register();
+            // Buffer size, striping limit and the token data connections attach with
+            transceiver.send(bufSize + " " + maxStripes + " " + token);
+        } else {
+            transceiver.send(String.valueOf(bufSize));
+        }
+        Printer.printfc("[SYSTEM/%s] (%s) Connected%n", ConsoleColors.CYAN, mode.toString(), socket.getClientAddress());
+    }
+
+    @Override
+    public void close() {
+        handler.close();
+        if (detached) return;   // The socket now belongs to another session
+        if (token != null) stripes.unregister(token);
+        if (authenticated) {
+            metrics.sessionClosed();
+            Printer.printfc("[SYSTEM/%s] (%s) Disconnected%n", ConsoleColors.CYAN, mode.toString(), socket.getClientAddress());
+        }
+        transceiver.close();
+    }
+
+}
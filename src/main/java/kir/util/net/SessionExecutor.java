@@ -0,0 +1,25 @@
+package kir.util.net;
+
+import kir.util.Printer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public enum SessionExecutor {
+    /** Cached pool of platform threads, one per connected session. */
+    PLATFORM,
+    /** One virtual thread per session, requires a Java 21+ runtime. */
+    VIRTUAL;
+
+    ExecutorService create() {
+        if (this == VIRTUAL) {
+            // Looked up at runtime so the library keeps targeting Java 17
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Printer.warning("Virtual threads require Java 21 or newer. Falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,101 @@
+package kir.util.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extra data connections of striped transfers, parked until the session that handed out
+ * their token claims them. A token is only ever sent to an authenticated client.
+ */
+final class StripeRegistry {
+
+    // How long a transfer waits for the client to open one of its data connections
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private final SecureRandom random;
+    private final Map<String, BlockingQueue<SocketChannel>> queues;
+
+    StripeRegistry() {
+        this.random = new SecureRandom();
+        this.queues = new ConcurrentHashMap<>();
+    }
+
+    String register() {
+        var bytes = new byte[16];
+        random.nextBytes(bytes);
+        var token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        queues.put(token, new LinkedBlockingQueue<>());
+        return token;
+    }
+
+    boolean contains(String token) {
+        return queues.containsKey(token);
+    }
+
+    boolean offer(String token, SocketChannel channel) {
+        var queue = queues.get(token);
+        if (queue == null) return false;
+        queue.add(channel);
+        // The session may have ended in between, nobody would claim the connection then
+        if (queues.get(token) != queue) {
+            queue.remove(channel);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the next data connection of {@code token}. On a pool worker the wait is managed,
+     * the pool may start a spare to serve the connection being waited for.
+     */
+    SocketChannel take(String token) throws IOException {
+        var queue = queues.get(token);
+        if (queue == null) throw new IOException("Session is closed");
+        var wait = new Wait(queue);
+        try {
+            ForkJoinPool.managedBlock(wait);
+            if (wait.channel == null) throw new IOException("Timed out waiting for a data connection");
+            return wait.channel;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a data connection");
+        }
+    }
+
+    void unregister(String token) {
+        var queue = queues.remove(token);
+        if (queue == null) return;
+        for (var channel : queue) try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    private static final class Wait implements ForkJoinPool.ManagedBlocker {
+
+        private final BlockingQueue<SocketChannel> queue;
+        private SocketChannel channel;
+
+        Wait(BlockingQueue<SocketChannel> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (channel == null) channel = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return channel != null || (channel = queue.poll()) != null;
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package kir.util.net;
+
+/**
+ * Transfer sizes of one session, tuned from what its transfers achieve. The shortest round
+ * trip seen and the averaged throughput of finished transfers give the bandwidth-delay
+ * product, what must be in flight to keep the path busy. Chunks are sized to it and socket buffers
+ * raised to twice it, within the configured bounds. UDP datagrams stay within the MTU of the
+ * local interface, they are halved while many are lost and doubled back once losses stop.
+ */
+final class TransferTuning {
+
+    static final int DEFAULT_MAX_BUFFER = 4 * 1024 * 1024;
+    // Weight of a new throughput sample in the average
+    private static final double GAIN = 0.25;
+    // Shorter transfers are dominated by their round trips and tell little about throughput
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+    // Datagrams sent between two adjustments of their size, and the loss ratios triggering them
+    private static final long MIN_SAMPLE_DATAGRAMS = 64;
+    private static final double LOSSY = 0.05;
+    private static final double CLEAN = 0.01;
+
+    private int minBuffer;
+    private int maxBuffer;
+    private boolean bounded;    // Bounds were configured rather than derived from the buffer size
+    private int chunk;
+    private int socketBuffer;   // 0 until the first bandwidth-delay product is known
+    private int datagram;       // 0 outside of UDP sessions
+    private int minDatagram;
+    private int maxDatagram;
+    private long rtt = -1;
+    private double throughput = -1;   // Bytes per second
+    private long datagramsSent;
+    private long datagramsLost;
+
+    TransferTuning(int bufSize) {
+        setBase(bufSize);
+    }
+
+    /**
+     * The buffer size agreed with the peer, chunks start from it and by default do not go below.
+     */
+    synchronized void setBase(int bufSize) {
+        if (!bounded) {
+            minBuffer = bufSize;
+            maxBuffer = Math.max(bufSize, DEFAULT_MAX_BUFFER);
+        }
+        chunk = clamp(throughput < 0 ? bufSize : chunk);
+    }
+
+    /**
+     * Bounds of chunks and socket buffers, a fixed size when both are the same.
+     */
+    synchronized void setBounds(int minBuffer, int maxBuffer) {
+        if (minBuffer <= 0 || maxBuffer < minBuffer) throw new IllegalArgumentException("Invalid buffer bounds " + minBuffer + ".." + maxBuffer);
+        this.minBuffer = minBuffer;
+        this.maxBuffer = maxBuffer;
+        this.bounded = true;
+        this.chunk = clamp(chunk);
+        if (socketBuffer > 0) this.socketBuffer = clamp(socketBuffer);
+    }
+
+    /**
+     * Starts tuning datagrams, from the largest one allowed.
+     */
+    synchronized void setDatagramBounds(int minDatagram, int maxDatagram) {
+        this.minDatagram = minDatagram;
+        this.maxDatagram = Math.max(minDatagram, maxDatagram);
+        this.datagram = this.maxDatagram;
+    }
+
+    // Processing on either side only adds to a sample, the shortest one is closest to the path
+    synchronized void rtt(long nanos) {
+        if (nanos <= 0 || (rtt >= 0 && nanos >= rtt)) return;
+        rtt = nanos;
+        resize();
+    }
+
+    synchronized void transferred(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) return;
+        var rate = bytes * 1e9 / nanos;
+        throughput = throughput < 0 ? rate : throughput + GAIN * (rate - throughput);
+        resize();
+    }
+
+    /**
+     * Totals of the datagrams sent and found lost by the stream of the session so far.
+     */
+    synchronized void datagrams(long sent, long lost) {
+        if (datagram == 0 || sent - datagramsSent < MIN_SAMPLE_DATAGRAMS) return;
+        var ratio = (double) (lost - datagramsLost) / (sent - datagramsSent);
+        datagramsSent = sent;
+        datagramsLost = lost;
+        if (ratio > LOSSY) datagram = Math.max(minDatagram, datagram / 2);
+        else if (ratio < CLEAN) datagram = Math.min(maxDatagram, datagram * 2);
+    }
+
+    private void resize() {
+        if (rtt < 0 || throughput < 0) return;
+        var bdp = (long) (throughput * rtt / 1e9);
+        // Powers of two match the size classes of the BufferPool
+        chunk = clamp(bdp <= 1 ? 1 : Long.highestOneBit(bdp - 1) << 1);
+        socketBuffer = clamp(2 * bdp);
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(minBuffer, Math.min(maxBuffer, size));
+    }
+
+    synchronized int getChunk() {
+        return chunk;
+    }
+
+    synchronized int getSocketBuffer() {
+        return socketBuffer;
+    }
+
+    synchronized int getDatagram() {
+        return datagram;
+    }
+
+    /**
+     * Renders the values in use as the line of the session answered to the {@code stats} command.
+     */
+    synchronized String format() {
+        var sb = new StringBuilder(String.format("Session: chunk %d bytes", chunk));
+        if (socketBuffer > 0) sb.append(String.format(", socket buffers %d bytes", socketBuffer));
+        if (datagram > 0) sb.append(String.format(", datagram %d bytes", datagram));
+        sb.append(rtt < 0 ? ", rtt -" : String.format(", rtt %.3fms", rtt / 1e6));
+        sb.append(throughput < 0 ? ", throughput -" : String.format(", throughput %.1f MB/s", throughput / (1024 * 1024)));
+        return sb.append(String.format("%n")).toString();
+    }
+
+}
@@ -0,0 +1,299 @@
+package kir.util.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Listening side of UDP sessions. Every session shares the one socket bound to the server
+ * port, packets are routed by the address of the client and the session id it picked. A
+ * single thread drains the socket in batches of non-blocking receives and hands each session
+ * the packets of a batch at once, the thread of a session is woken once per batch. Packets are
+ * received into pooled direct buffers that are handed to the session as they are.
+ * <p>
+ * As with a {@link java.net.ServerSocket}, closing stops accepting sessions but leaves those
+ * already accepted running, the socket is released with the last of them.
+ */
+public final class UDPServerSocket implements Closeable {
+
+    // Datagrams received before the sessions are handed what they got
+    private static final int BATCH = 64;
+    // Packets a session holds before further ones are dropped, as a full socket buffer would
+    private static final int INBOX_LIMIT = 2048;
+    private static final byte[] LOCATE = UDPSocket.LOCATE.getBytes(StandardCharsets.US_ASCII);
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int bufSize;
+    private final int packetSize;
+    private final Map<Key, Session> sessions;
+    private final ArrayDeque<Session> accepted;
+    private boolean closed;
+
+    public UDPServerSocket(int port, int bufSize) throws IOException {
+        this(new InetSocketAddress(port), bufSize);
+    }
+
+    public UDPServerSocket(InetSocketAddress address, int bufSize) throws IOException {
+        this.bufSize = bufSize;
+        this.packetSize = DatagramStream.packetSize(bufSize);
+        this.sessions = new ConcurrentHashMap<>();
+        this.accepted = new ArrayDeque<>();
+        this.channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, DatagramStream.SOCKET_BUFFER)
+                    .setOption(StandardSocketOptions.SO_SNDBUF, DatagramStream.SOCKET_BUFFER)
+                    .bind(address)
+                    .configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        var t = new Thread(this::run, "udp-server-" + getLocalPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Waits for a client to locate this server.
+     */
+    public UDPSocket accept() throws IOException {
+        synchronized (accepted) {
+            try {
+                while (accepted.isEmpty()) {
+                    if (closed) throw new SocketException("Socket is closed");
+                    accepted.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a client");
+            }
+            var session = accepted.pollFirst();
+            var peer = session.peer;
+            return new UDPSocket(channel.socket(), session, session.key.session(), peer.getAddress(), peer.getPort(), bufSize);
+        }
+    }
+
+    private void run() {
+        var buf = BufferPool.acquireDirect(packetSize);
+        // Sessions given packets in the current batch, and the key looked up for each packet
+        var batch = new ArrayList<Session>();
+        var probe = new Key(null, 0);
+        try {
+            while (channel.isOpen()) {
+                selector.select(key -> {});
+                SocketAddress source;
+                int n;
+                do {
+                    n = 0;
+                    while (n < BATCH && (source = channel.receive(buf.clear())) != null) {
+                        n++;
+                        if (route(source, buf.flip(), probe, batch)) buf = BufferPool.acquireDirect(packetSize);
+                    }
+                    for (var i = 0; i < batch.size(); i++) batch.get(i).deliver();
+                    batch.clear();
+                } while (n == BATCH);
+            }
+        } catch (IOException | ClosedSelectorException ignored) {
+            // Closed along with the last session
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    // Returns whether the packet was handed to a session, which then owns its buffer
+    private boolean route(SocketAddress source, ByteBuffer p, Key probe, List<Session> batch) throws IOException {
+        if (p.remaining() > LOCATE.length && p.get(0) == LOCATE[0]) {
+            locate(source, StandardCharsets.US_ASCII.decode(p).toString());
+            return false;
+        }
+        if (p.remaining() < 1 + Integer.BYTES) return false;
+        var session = sessions.get(probe.set(source, p.getInt(1)));
+        if (session == null) return false;
+        if (session.pending.isEmpty()) batch.add(session);
+        session.pending.addLast(p);
+        return true;
+    }
+
+    // A repeated request for a session that exists is a lost answer, it is answered again
+    private void locate(SocketAddress source, String request) throws IOException {
+        if (!request.startsWith(UDPSocket.LOCATE)) return;
+        int id;
+        try {
+            id = Integer.parseInt(request.substring(UDPSocket.LOCATE.length()).trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        var key = new Key(source, id);
+        synchronized (accepted) {
+            if (closed) return;
+        }
+        // Answered before the session is accepted, so the answer comes before anything the session sends
+        send(ByteBuffer.wrap(String.valueOf(bufSize).getBytes(StandardCharsets.US_ASCII)), source);
+        if (sessions.containsKey(key)) return;
+        synchronized (accepted) {
+            if (closed) return;
+            var session = new Session(key);
+            sessions.put(key, session);
+            accepted.addLast(session);
+            accepted.notifyAll();
+        }
+    }
+
+    // The channel is non-blocking, a datagram refused while the socket buffer is full is retried
+    private void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        while (channel.send(packet, target) == 0) LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    }
+
+    /**
+     * Stops accepting sessions, the socket stays open until the accepted ones are closed.
+     */
+    @Override
+    public void close() {
+        List<Session> pending;
+        synchronized (accepted) {
+            if (closed) return;
+            closed = true;
+            pending = new ArrayList<>(accepted);
+            accepted.clear();
+            accepted.notifyAll();
+        }
+        pending.forEach(Session::close);
+        releaseIfIdle();
+    }
+
+    private void releaseIfIdle() {
+        synchronized (accepted) {
+            if (!closed || !sessions.isEmpty() || !accepted.isEmpty()) return;
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    // Mutable so the receiving thread looks sessions up without a key per packet, stored keys never change
+    private static final class Key {
+
+        private SocketAddress address;
+        private int session;
+
+        Key(SocketAddress address, int session) {
+            set(address, session);
+        }
+
+        Key set(SocketAddress address, int session) {
+            this.address = address;
+            this.session = session;
+            return this;
+        }
+
+        int session() {
+            return session;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && session == k.session && address.equals(k.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + session;
+        }
+
+    }
+
+    /**
+     * Packets of one session, queued by the receiving thread until its stream takes them.
+     */
+    private final class Session implements DatagramStream.Transport {
+
+        private final Key key;
+        private final InetSocketAddress peer;
+        // Packets of the current batch, only touched by the receiving thread
+        private final ArrayDeque<ByteBuffer> pending;
+        private final ArrayDeque<ByteBuffer> inbox;
+        private boolean closed;
+
+        Session(Key key) {
+            this.key = key;
+            this.peer = (InetSocketAddress) key.address;
+            this.pending = new ArrayDeque<>();
+            this.inbox = new ArrayDeque<>();
+        }
+
+        synchronized void deliver() {
+            ByteBuffer p;
+            while ((p = pending.pollFirst()) != null) {
+                if (closed || inbox.size() >= INBOX_LIMIT) BufferPool.release(p);
+                else inbox.addLast(p);
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void send(ByteBuffer packet) throws IOException {
+            if (isClosed()) throw new SocketException("Session closed");
+            UDPServerSocket.this.send(packet, peer);
+        }
+
+        @Override
+        public synchronized ByteBuffer receive(int timeoutMillis) throws IOException {
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                long remaining;
+                while (inbox.isEmpty()) {
+                    if (closed) throw new SocketException("Session closed");
+                    if ((remaining = deadline - System.nanoTime()) <= 0) return null;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a packet");
+            }
+            return inbox.pollFirst();
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                ByteBuffer p;
+                while ((p = inbox.pollFirst()) != null) BufferPool.release(p);
+                notifyAll();
+            }
+            sessions.remove(key);
+            releaseIfIdle();
+        }
+
+    }
+
+}
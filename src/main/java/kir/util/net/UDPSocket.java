@@ -1,26 +1,53 @@
 package kir.util.net;
 
 import kir.util.Printer;
-import kir.util.Randomizer;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A UDP session. Clients own their socket, sessions of a server share the socket of its
+ * {@link UDPServerSocket} and are told apart by a session id the client picks.
+ */
 public final class UDPSocket extends NetSocket<DatagramSocket> {
 
+    // Datagrams of the locate exchange may be lost, it is repeated a few times
+    private static final int LOCATE_TIMEOUT_MILLIS = 1000;
+    private static final int LOCATE_ATTEMPTS = 5;
+    // Assumed when the interface toward the peer is unknown
+    private static final int ETHERNET_MTU = 1500;
+    static final String LOCATE = "locate ";
+
     private final DatagramSocket socket;
+    private final DatagramStream.Transport transport;
+    private final int session;
+    private DatagramStream stream;
 
-    private UDPSocket(DatagramSocket ds, InetAddress address, int port, int bufSize) {
-        this.socket = ds;
+    UDPSocket(DatagramSocket socket, DatagramStream.Transport transport, int session, InetAddress address, int port, int bufSize) {
+        this.socket = socket;
+        this.transport = transport;
+        this.session = session;
         this.clientAddress = address;
         this.clientPort = port;
         this.buffer = bufSize;
     }
-    private UDPSocket(DatagramSocket socket) {
-        this.socket = socket;
-    }
 
     @Override
     public InetAddress getClientAddress() {
@@ -49,66 +76,169 @@ public final class UDPSocket extends NetSocket<DatagramSocket> {
 
     @Override
     public boolean isClosed() {
-        return this.socket.isClosed();
+        return this.transport.isClosed();
     }
 
+    /**
+     * @return the socket of this client, or the socket shared by every session of the server.
+     */
     @Override
     public DatagramSocket getSocket() {
         return this.socket;
     }
 
-    public static UDPSocket negotiate(DatagramSocket ds, DatagramPacket locatePkt, int bufSize) throws IOException {
-        var locatePktData = new String(locatePkt.getData()).trim();
-        var negotiatePkt = new DatagramPacket(new byte[8], 8);
+    int getSession() {
+        return session;
+    }
 
-        try {
-            if (!locatePktData.equalsIgnoreCase("locate")) return null;
-            negotiatePkt.setData(String.valueOf(bufSize).getBytes());
-            negotiatePkt.setAddress(locatePkt.getAddress());
-            negotiatePkt.setPort(locatePkt.getPort());
-            ds.send(negotiatePkt);
-        } finally {
-            locatePkt.setData(new byte[8]);
+    /**
+     * Largest datagram leaving this host toward the peer without being fragmented: the MTU of
+     * the interface routing to it less the IP and UDP headers. Links further along may carry
+     * less, this is the upper bound of the path MTU.
+     */
+    int getUnfragmentedSize() {
+        var headers = clientAddress instanceof Inet6Address ? 48 : 28;
+        // Connecting a datagram socket only picks the route, nothing is sent
+        try (var probe = new DatagramSocket()) {
+            probe.connect(clientAddress, clientPort);
+            var nif = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            var mtu = nif != null ? nif.getMTU() : -1;
+            return (mtu > 0 ? mtu : ETHERNET_MTU) - headers;
+        } catch (IOException e) {
+            return ETHERNET_MTU - headers;
         }
+    }
 
-        var servPort = Randomizer.randomAvailablePort();
+    /**
+     * The reliable stream to the other end of this socket, opened on first use.
+     */
+    synchronized DatagramStream getStream() {
+        if (stream == null) stream = DatagramStream.open(transport, session, buffer);
+        return stream;
+    }
+
+    /**
+     * Opens a session with the server listening on {@code endpoint:port}. The server answers
+     * with its buffer size and the session then talks to that same port.
+     */
+    public static UDPSocket locate(String endpoint, int port, int bufSize) throws IOException {
+        var address = InetAddress.getByName(endpoint);
+        var session = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        var request = ByteBuffer.wrap((LOCATE + session).getBytes(StandardCharsets.US_ASCII));
+        var reply = ByteBuffer.allocateDirect(16);
+
+        var transport = new ChannelTransport(address, port);
+        var serverBuf = -1;
         try {
-            negotiatePkt.setData(String.valueOf(servPort).getBytes());
-            ds.send(negotiatePkt);
-        } finally {
-            locatePkt.setData(new byte[8]);
+            for (var attempt = 1; serverBuf < 0; attempt++) {
+                // The same session is located again, the server answers a repeated request the same way
+                transport.send(request.rewind());
+                while (serverBuf < 0 && transport.read(reply.clear(), LOCATE_TIMEOUT_MILLIS))
+                    serverBuf = parseBufferSize(reply.flip());
+                if (serverBuf < 0 && attempt == LOCATE_ATTEMPTS)
+                    throw new SocketTimeoutException("No answer from " + endpoint + ":" + port);
+            }
+        } catch (IOException e) {
+            transport.close();
+            throw e;
+        }
+
+        if (bufSize > serverBuf || bufSize < serverBuf) {
+            Printer.warning("[SYSTEM/UDP] Server is operating with different buffer size. Readjusting...");
+            bufSize = serverBuf;
         }
+        transport.packetSize = DatagramStream.packetSize(bufSize);
 
-        var socket = new UDPSocket(new DatagramSocket(servPort));
-        socket.clientAddress = locatePkt.getAddress();
-        socket.clientPort = locatePkt.getPort();
-        socket.buffer = bufSize;
+        return new UDPSocket(transport.channel.socket(), transport, session, address, port, bufSize);
+    }
 
-        return socket;
+    // Anything else than the answer of the server, such as a stray datagram, is skipped
+    private static int parseBufferSize(ByteBuffer reply) {
+        try {
+            var size = Integer.parseInt(StandardCharsets.US_ASCII.decode(reply).toString().trim());
+            return size > 0 ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    public static UDPSocket locate(String endpoint, int port, int bufSize) throws IOException {
-        var inPkt = new DatagramPacket(new byte[8], 8);
-        var outPkt = new DatagramPacket(new byte[8], 8, InetAddress.getByName(endpoint), port);
+    /**
+     * Packets of a client socket. The channel is connected to the server, the system drops
+     * anything else, and non-blocking so a receive waits on a selector rather than a timeout.
+     */
+    private static final class ChannelTransport implements DatagramStream.Transport {
+
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private int packetSize;
+
+        ChannelTransport(InetAddress address, int port) throws IOException {
+            this.channel = DatagramChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, DatagramStream.SOCKET_BUFFER)
+                        .setOption(StandardSocketOptions.SO_SNDBUF, DatagramStream.SOCKET_BUFFER)
+                        .connect(new InetSocketAddress(address, port))
+                        .configureBlocking(false);
+                this.selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
 
-        var ds = new DatagramSocket();
+        // A datagram refused while the socket buffer is full is retried, one refused by the
+        // system for an earlier unreachable port is lost as it would be on the way
+        @Override
+        public void send(ByteBuffer packet) throws IOException {
+            try {
+                while (channel.write(packet) == 0) LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            } catch (PortUnreachableException ignored) {
+            }
+        }
 
-        outPkt.setData("locate".getBytes());
-        ds.send(outPkt);
-        ds.receive(inPkt);
+        // Only called by the thread of the stream, which then owns the packet
+        @Override
+        public ByteBuffer receive(int timeoutMillis) throws IOException {
+            var packet = BufferPool.acquireDirect(packetSize);
+            if (read(packet, timeoutMillis)) return packet.flip();
+            BufferPool.release(packet);
+            return null;
+        }
 
-        var serverBuf = Integer.parseInt(new String(inPkt.getData()).trim());
-        if (bufSize > serverBuf || bufSize < serverBuf) {
-            Printer.warning("[SYSTEM/UDP] Server is operating with different buffer size. Readjusting...");
-            bufSize = serverBuf;
+        /**
+         * Receives a datagram into {@code buf}, waiting at most {@code timeoutMillis} for one.
+         * @return {@code false} if none arrived in time.
+         */
+        boolean read(ByteBuffer buf, int timeoutMillis) throws IOException {
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (true) {
+                try {
+                    if (channel.read(buf) > 0) return true;
+                } catch (PortUnreachableException ignored) {
+                    // The server is not listening yet or any longer, as for a lost datagram
+                }
+                var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) return false;
+                try {
+                    selector.select(key -> {}, remaining);
+                } catch (ClosedSelectorException e) {
+                    throw new AsynchronousCloseException();
+                }
+            }
         }
 
-        inPkt.setData(new byte[8]);
-        ds.receive(inPkt);
-        var serverPort = Integer.parseInt(new String(inPkt.getData()).trim());
+        @Override
+        public boolean isClosed() {
+            return !channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+            try { selector.close(); } catch (IOException ignored) {}
+        }
 
-        Printer.warning("[SYSTEM/UDP] Negotiated on port " + serverPort);
-        return new UDPSocket(ds, inPkt.getAddress(), serverPort, bufSize);
     }
 
 }